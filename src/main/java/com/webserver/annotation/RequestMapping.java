@@ -7,9 +7,33 @@ import java.lang.annotation.Target;
 
 /**
  * 标注那些用于处理某个请求路径的方法
+ * 路径中可以使用路径变量 例如:/myweb/article/{id}
+ * 通过HttpServletRequest.getPathVariable("id")获取实际的值
+ * 方法的返回值可以是void，也可以是CompletableFuture:
+ * 返回CompletableFuture时处理请求的线程立即被释放，等它完成后再发送响应，
+ * 在它完成之前响应只能由异步处理的代码修改，完成之后不能再修改。
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.METHOD)
 public @interface RequestMapping {
     String value();
+
+    /**
+     * 处理的请求方式 例如:{"GET","POST"}，默认处理所有请求方式
+     * 请求方式不匹配时回复405
+     */
+    String[] method() default {};
+
+    /**
+     * 异步处理(返回CompletableFuture)的超时时间(毫秒)，超时后回复503
+     * 默认使用配置server.async.timeout
+     */
+    long timeout() default 0;
+
+    /**
+     * 响应的缓存时间(毫秒)，大于0时GET请求的完整响应会被缓存，
+     * 有效期内相同路径(含参数)的请求直接发送缓存的响应，不再调用该方法
+     * 只适用于结果在短时间内不变，并且与客户端无关的请求
+     */
+    long cacheTtl() default 0;
 }
@@ -4,14 +4,25 @@ import com.webserver.annotation.Controller;
 import com.webserver.annotation.RequestMapping;
 import com.webserver.core.ClientHandler;
 import com.webserver.entity.Article;
+import com.webserver.http.HttpContext;
 import com.webserver.http.HttpServletRequest;
 import com.webserver.http.HttpServletResponse;
+import com.webserver.storage.ArticleStore;
+import com.webserver.storage.ObjFileMigration;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
 import java.net.URISyntaxException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * 处理与文章相关的业务
@@ -22,15 +33,35 @@ public class ArticleController {
      * 该目录用于保存所有文章信息
      */
     private static File ARTICLE_DIR = new File("./articles");
+    /**
+     * 所有文章保存在该目录下的段文件中
+     */
+    private static ArticleStore store;
 
     static{
         if(!ARTICLE_DIR.exists()){
             ARTICLE_DIR.mkdirs();
         }
+        try {
+            store = new ArticleStore(ARTICLE_DIR);
+            File[] objFiles = ObjFileMigration.listObjFiles(ARTICLE_DIR);
+            if(objFiles.length>0){
+                System.out.println("发现"+objFiles.length+"个旧格式的文章文件，请运行ObjFileMigration导入");
+            }
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
     }
 
-    @RequestMapping("/myweb/writeArticle")
-    public void writeArticle(HttpServletRequest request, HttpServletResponse response){
+    /**
+     * 发表文章
+     * 文章通过组提交写入，写入磁盘后才回复客户端，等待期间不占用处理请求的线程
+     *
+     * @param request
+     * @param response
+     */
+    @RequestMapping(value = "/myweb/writeArticle", method = "POST")
+    public CompletableFuture<Void> writeArticle(HttpServletRequest request, HttpServletResponse response){
         //获取表单信息
         String title = request.getParameter("title");
         String author = request.getParameter("author");
@@ -38,34 +69,152 @@ public class ArticleController {
         if(title==null||author==null||content==null){
             //跳错误页面
             response.sendRedirect("/myweb/writeArticle_info_error.html");
-            return;
-        }
-
-        File articleFile = new File(ARTICLE_DIR,title+".obj");
-
-        try(
-            FileOutputStream fos = new FileOutputStream(articleFile);
-            ObjectOutputStream oos = new ObjectOutputStream(fos);
-        ){
-            Article article = new Article(title,author,content);
-            oos.writeObject(article);
-
-            response.sendRedirect("/myweb/writeArticle_success.html");
-        }catch(IOException e){
-            e.printStackTrace();
+            return null;
         }
 
+        Article article = new Article(title,author,content);
+        return store.addAsync(article).thenAccept(
+                id -> response.sendRedirect("/myweb/writeArticle_success.html")
+        );
     }
 
-    @RequestMapping("/myweb/showAllArticle")
+    /**
+     * 生成文章列表页面，按照发表时间从新到旧排列
+     * 使用游标分页，只读取索引，不读取文章内容。
+     * 参数:
+     * author 只显示该作者的文章
+     * before 游标，只显示编号小于该值的文章，由"下一页"链接给出
+     * size   每页的文章数，默认20，最多100
+     *
+     * @param request
+     * @param response
+     */
+    @RequestMapping(value = "/myweb/showAllArticle", method = "GET")
     public void showAllArticle(HttpServletRequest request,HttpServletResponse response){
         System.out.println("开始生成动态页面");
+        String author = request.getParameter("author");
+        if(author!=null&&author.isEmpty()){
+            author = null;
+        }
+        long before = parseLong(request.getParameter("before"),0);
+        int size = (int)Math.min(Math.max(1,parseLong(request.getParameter("size"),20)),100);
+
+        //多取一篇，用来判断是否还有下一页
+        List<Article> articles = store.list(author,before,size+1);
+        boolean hasNext = articles.size()>size;
+        if(hasNext){
+            articles = articles.subList(0,size);
+        }
 
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        pw.println("<!DOCTYPE html>");
+        pw.println("<html lang=\"en\">");
+        pw.println("<head>");
+        pw.println("<meta charset=\"UTF-8\">");
+        pw.println("<title>文章列表</title>");
+        pw.println("</head>");
+        pw.println("<body>");
+        pw.println("<center>");
+        pw.println("<h1>"+(author==null?"文章列表":HttpContext.escapeHtml(author)+"的文章")+"</h1>");
+        pw.println("<table border=\"1\">");
+        pw.println("<tr>");
+        pw.println("<td>标题</td>");
+        pw.println("<td>作者</td>");
+        pw.println("<td>发表时间</td>");
+        pw.println("</tr>");
+        for(Article article : articles){
+            pw.println("<tr>");
+            pw.println("<td><a href=\"/myweb/showArticle?id="+article.getId()+"\">"
+                    +HttpContext.escapeHtml(article.getTitle())+"</a></td>");
+            pw.println("<td><a href=\"/myweb/showAllArticle?author="+encode(article.getAuthor())+"\">"
+                    +HttpContext.escapeHtml(article.getAuthor())+"</a></td>");
+            pw.println("<td>"+format.format(new Date(article.getCreateTime()))+"</td>");
+            pw.println("</tr>");
+        }
+        pw.println("</table>");
+        pw.print("<p>共"+store.size(author)+"篇文章 ");
+        String query = (author==null?"":"author="+encode(author)+"&amp;")+"size="+size;
+        if(before>0){
+            pw.print("<a href=\"/myweb/showAllArticle?"+query+"\">最新</a> ");
+        }
+        if(hasNext){
+            long next = articles.get(articles.size()-1).getId();
+            pw.print("<a href=\"/myweb/showAllArticle?"+query+"&amp;before="+next+"\">下一页</a>");
+        }
+        pw.println("</p>");
+        pw.println("</center>");
+        pw.println("</body>");
+        pw.println("</html>");
+        pw.flush();
+
+        response.setContentType("text/html");
+        try {
+            response.getOutputStream().write(out.toByteArray());
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("动态页面生成完毕!");
     }
-}
-
-
 
+    /**
+     * 显示一篇文章
+     * 参数id为文章的编号
+     *
+     * @param request
+     * @param response
+     */
+    @RequestMapping(value = "/myweb/showArticle", method = "GET")
+    public void showArticle(HttpServletRequest request,HttpServletResponse response){
+        long id = parseLong(request.getParameter("id"),0);
+        try {
+            Article article = store.get(id);
+            response.setContentType("text/html");
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(response.getOutputStream(), StandardCharsets.UTF_8));
+            if(article==null){
+                response.setStatusCode(404);
+                response.setStatusReason("NotFound");
+                pw.println("<!DOCTYPE html>");
+                pw.println("<html lang=\"en\">");
+                pw.println("<head><meta charset=\"UTF-8\"><title>文章不存在</title></head>");
+                pw.println("<body><center><h1>文章不存在</h1><a href=\"/myweb/showAllArticle\">返回文章列表</a></center></body>");
+                pw.println("</html>");
+                pw.flush();
+                return;
+            }
+            pw.println("<!DOCTYPE html>");
+            pw.println("<html lang=\"en\">");
+            pw.println("<head>");
+            pw.println("<meta charset=\"UTF-8\">");
+            pw.println("<title>"+HttpContext.escapeHtml(article.getTitle())+"</title>");
+            pw.println("</head>");
+            pw.println("<body>");
+            pw.println("<h1>"+HttpContext.escapeHtml(article.getTitle())+"</h1>");
+            pw.println("<p>"+HttpContext.escapeHtml(article.getAuthor())+" "
+                    +new SimpleDateFormat("yyyy-MM-dd HH:mm:ss").format(new Date(article.getCreateTime()))+"</p>");
+            pw.println("<pre>"+HttpContext.escapeHtml(article.getContent())+"</pre>");
+            pw.println("<a href=\"/myweb/showAllArticle\">返回文章列表</a>");
+            pw.println("</body>");
+            pw.println("</html>");
+            pw.flush();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
 
+    private static String encode(String value){
+        try {
+            return URLEncoder.encode(value,"UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 
+    private static long parseLong(String value,long defaultValue){
+        if(value==null||!value.matches("[0-9]{1,18}")){
+            return defaultValue;
+        }
+        return Long.parseLong(value);
+    }
+}
@@ -4,14 +4,21 @@ import com.webserver.annotation.Controller;
 import com.webserver.annotation.RequestMapping;
 import com.webserver.core.ClientHandler;
 import com.webserver.entity.User;
+import com.webserver.http.HttpContext;
 import com.webserver.http.HttpServletRequest;
 import com.webserver.http.HttpServletResponse;
+import com.webserver.storage.ObjFileMigration;
+import com.webserver.storage.UserStore;
+import com.webserver.storage.UserView;
 
 import java.io.*;
 import java.net.URISyntaxException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * MVC模型
@@ -27,21 +34,44 @@ public class UserController {
      * 该目录用于保存所有用户信息
      */
     private static File USER_DIR = new File("./users");
+    /**
+     * 所有用户保存在该目录下的users.dat中
+     */
+    private static UserStore store;
+    /**
+     * 所有用户的列表，注册成功后增量更新
+     */
+    private static UserView userView;
+    /**
+     * 生成好的用户列表页面 key:排序方式,是否倒序,页码,每页数量
+     */
+    private static Map<String, CachedPage> pageCache = new ConcurrentHashMap<>();
 
     static {
         if (!USER_DIR.exists()) {
             USER_DIR.mkdirs();
         }
+        try {
+            store = new UserStore(new File(USER_DIR, "users.dat"));
+            File[] objFiles = ObjFileMigration.listObjFiles(USER_DIR);
+            if (objFiles.length > 0) {
+                System.out.println("发现" + objFiles.length + "个旧格式的用户文件，请运行ObjFileMigration导入");
+            }
+            userView = new UserView(store.getAll());
+        } catch (IOException e) {
+            throw new ExceptionInInitializerError(e);
+        }
     }
 
     /**
      * 处理用户注册
+     * 用户信息通过组提交写入，写入磁盘后才回复客户端，等待期间不占用处理请求的线程
      *
      * @param request
      * @param response
      */
-    @RequestMapping("/myweb/reg")
-    public void reg(HttpServletRequest request, HttpServletResponse response) {
+    @RequestMapping(value = "/myweb/reg", method = "POST")
+    public CompletableFuture<Void> reg(HttpServletRequest request, HttpServletResponse response) {
         System.out.println("开始处理用户注册...");
         //1获取用户表单提交上来的数据
         String username = request.getParameter("username");
@@ -53,34 +83,25 @@ public class UserController {
         if (username == null || password == null || nickname == null || ageStr == null
                 || !ageStr.matches("[0-9]+")) {
             response.sendRedirect("/myweb/reg_fail.html");
-            return;
+            return null;
         }
 
 
-        //2将用户信息以一个User实例形式表示，并序列化到文件中
+        //2将用户信息以一个User实例形式表示，并保存到users.dat中
         int age = Integer.parseInt(ageStr);
         User user = new User(username, password, nickname, age);
-        //将该用户信息以用户名.obj的形式保存到users目录中
-        File userFile = new File(USER_DIR, username + ".obj");
 
-        //判断是否为重复用户
-        if (userFile.exists()) {
-            response.sendRedirect("/myweb/have_user.html");
-            return;
-        }
-
-
-        try (
-                FileOutputStream fos = new FileOutputStream(userFile);
-                ObjectOutputStream oos = new ObjectOutputStream(fos);
-        ) {
-            oos.writeObject(user);
-            //注册成功了
-            response.sendRedirect("/myweb/reg_success.html");
-        } catch (IOException e) {
-
-        }
-        System.out.println("处理用户注册完毕!");
+        //用户名不存在时才会保存，同时注册同一个用户名只有一个能成功
+        return store.createAsync(user).thenAccept(created -> {
+            if (created) {
+                userView.add(user);
+                //注册成功了
+                response.sendRedirect("/myweb/reg_success.html");
+            } else {//重复用户
+                response.sendRedirect("/myweb/have_user.html");
+            }
+            System.out.println("处理用户注册完毕!");
+        });
     }
 
     /**
@@ -89,7 +110,7 @@ public class UserController {
      * @param request
      * @param response
      */
-    @RequestMapping("/myweb/login")
+    @RequestMapping(value = "/myweb/login", method = "POST")
     public void login(HttpServletRequest request, HttpServletResponse response) {
         System.out.println("开始处理登录...");
         String username = request.getParameter("username");
@@ -101,22 +122,15 @@ public class UserController {
             return;
         }
 
-        File userFile = new File(USER_DIR, username + ".obj");
-        if (userFile.exists()) {//该文件存在才说明是注册用户
-            //反序列化该注册用户信息
-            try (
-                    FileInputStream fis = new FileInputStream(userFile);
-                    ObjectInputStream ois = new ObjectInputStream(fis);
-            ) {
-                User user = (User) ois.readObject();
-                if (user.getPassword().equals(password)) {
-                    //登录成功
-                    response.sendRedirect("/myweb/login_success.html");
-                    return;
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                e.printStackTrace();
+        try {
+            User user = store.get(username);
+            if (user != null && user.getPassword().equals(password)) {//存在该用户并且密码正确
+                //登录成功
+                response.sendRedirect("/myweb/login_success.html");
+                return;
             }
+        } catch (IOException e) {
+            e.printStackTrace();
         }
 
         //如果程序能走到这里，就说明要么是用户名不对，要么是密码不对
@@ -126,34 +140,61 @@ public class UserController {
 
     /**
      * 生成显示所有用户信息的动态页面
+     * 用户列表来自内存中的物化视图，每页生成的页面按照视图的版本缓存，
+     * 只有注册了新用户之后才重新生成。
+     * 参数:
+     * sort  排序方式 time(注册时间，默认) username nickname age
+     * order asc(默认) desc
+     * page  页码，从1开始
+     * size  每页的用户数，默认50，最多200
      *
      * @param request
      * @param response
      */
-    @RequestMapping("/myweb/showAllUser")
+    @RequestMapping(value = "/myweb/showAllUser", method = "GET")
     public void showAllUser(HttpServletRequest request, HttpServletResponse response) {
         System.out.println("开始生成动态页面...");
-        //1将users目录下的所有obj文件进行反序列化，并将得到的所有User对象存入一个List集合备用
-        List<User> userList = new ArrayList<>();
-
-        //先将users下所有的.obj文件获取回来
-        File[] subs = USER_DIR.listFiles(f -> f.getName().endsWith(".obj"));
-        //遍历每一个obj文件并进行反序列化得到user对象
-        for (File userFile : subs) {
-            try (
-                    FileInputStream fis = new FileInputStream(userFile);
-                    ObjectInputStream ois = new ObjectInputStream(fis);
-            ) {
-                User user = (User) ois.readObject();
-                //将user对象存入userList集合备用
-                userList.add(user);
-            } catch (Exception e) {
-                e.printStackTrace();
+        String sort = request.getParameter("sort");
+        if (UserView.indexOfSort(sort) == -1) {
+            sort = "time";
+        }
+        boolean desc = "desc".equals(request.getParameter("order"));
+        int size = Math.min(Math.max(1, parseInt(request.getParameter("size"), 50)), 200);
+        int page = Math.max(1, parseInt(request.getParameter("page"), 1));
+
+        String key = sort + "," + desc + "," + page + "," + size;
+        long version = userView.getVersion();
+        CachedPage cached = pageCache.get(key);
+        if (cached == null || cached.version != version) {
+            cached = new CachedPage(version, renderUserPage(sort, desc, page, size));
+            if (pageCache.size() >= 1000) {//参数组合过多时清空，避免占用过多内存
+                pageCache.clear();
             }
+            pageCache.put(key, cached);
         }
 
-        //2生成页面
-        PrintWriter pw = response.getWriter();
+        //设置正文类型Content-Type(页面较大时会边生成边发送，响应头需在输出之前设置)
+        response.setContentType("text/html");
+        try {
+            response.getOutputStream().write(cached.data);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        System.out.println("动态页面生成完毕!");
+    }
+
+    /**
+     * 生成用户列表中的一页
+     * @return 页面的内容
+     */
+    private static byte[] renderUserPage(String sort, boolean desc, int page, int size) {
+        int total = userView.size();
+        int pages = Math.max(1, (total + size - 1) / size);
+        page = Math.min(page, pages);
+        List<User> userList = userView.getPage(sort, desc, (page - 1) * size, size);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        PrintWriter pw = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
         pw.println("<!DOCTYPE html>");
         pw.println("<html lang=\"en\">");
         pw.println("<head>");
@@ -165,28 +206,64 @@ public class UserController {
         pw.println("<h1>用户列表</h1>");
         pw.println("<table border=\"1\">");
         pw.println("<tr>");
-        pw.println("<td>用户名</td>");
+        //点击表头按照该列排序，再次点击时倒序
+        pw.println("<td>" + sortLink("username", "用户名", sort, desc, size) + "</td>");
         pw.println("<td>密码</td>");
-        pw.println("<td>昵称</td>");
-        pw.println("<td>年龄</td>");
+        pw.println("<td>" + sortLink("nickname", "昵称", sort, desc, size) + "</td>");
+        pw.println("<td>" + sortLink("age", "年龄", sort, desc, size) + "</td>");
         pw.println("</tr>");
         for (User user : userList) {
             pw.println("<tr>");
-            pw.println("<td>" + user.getUsername() + "</td>");
-            pw.println("<td>" + user.getPassword() + "</td>");
-            pw.println("<td>" + user.getNickname() + "</td>");
+            pw.println("<td>" + HttpContext.escapeHtml(user.getUsername()) + "</td>");
+            pw.println("<td>" + HttpContext.escapeHtml(user.getPassword()) + "</td>");
+            pw.println("<td>" + HttpContext.escapeHtml(user.getNickname()) + "</td>");
             pw.println("<td>" + user.getAge() + "</td>");
             pw.println("</tr>");
         }
         pw.println("</table>");
+        pw.print("<p>共" + total + "个用户 第" + page + "/" + pages + "页 ");
+        if (page > 1) {
+            pw.print("<a href=\"" + pageUrl(sort, desc, page - 1, size) + "\">上一页</a> ");
+        }
+        if (page < pages) {
+            pw.print("<a href=\"" + pageUrl(sort, desc, page + 1, size) + "\">下一页</a>");
+        }
+        pw.println("</p>");
         pw.println("</center>");
         pw.println("</body>");
         pw.println("</html>");
+        pw.flush();
+        return out.toByteArray();
+    }
 
-        //设置正文类型Content-Type
-        response.setContentType("text/html");
+    private static String sortLink(String column, String title, String sort, boolean desc, int size) {
+        boolean nextDesc = column.equals(sort) && !desc;
+        return "<a href=\"" + pageUrl(column, nextDesc, 1, size) + "\">" + title + "</a>";
+    }
 
-        System.out.println("动态页面生成完毕!");
+    private static String pageUrl(String sort, boolean desc, int page, int size) {
+        return "/myweb/showAllUser?sort=" + sort + "&amp;order=" + (desc ? "desc" : "asc")
+                + "&amp;page=" + page + "&amp;size=" + size;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        if (value == null || !value.matches("[0-9]{1,9}")) {
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * 缓存的一页用户列表
+     */
+    private static class CachedPage {
+        private final long version;//生成时用户列表的版本
+        private final byte[] data;
+
+        CachedPage(long version, byte[] data) {
+            this.version = version;
+            this.data = data;
+        }
     }
 
 }
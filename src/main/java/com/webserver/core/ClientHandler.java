@@ -1,15 +1,22 @@
 package com.webserver.core;
 
+import com.webserver.http.BadRequestException;
 import com.webserver.http.EmptyRequestException;
+import com.webserver.http.HttpRequestParser;
 import com.webserver.http.HttpServletRequest;
 import com.webserver.http.HttpServletResponse;
+import com.webserver.http.ResponseCache;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
 import java.net.URISyntaxException;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * 该线程任务负责与指定的客户端完成HTTP交互
@@ -17,46 +24,146 @@ import java.util.Map;
  * 1:解析请求
  * 2:处理请求
  * 3:发送响应
+ * HTTP/1.1支持持久链接，同一个链接上可以连续进行多次交互，直到客户端要求断开，
+ * 空闲超时或者达到一个链接允许的最大请求数为止。
+ * Controller方法异步处理请求时当前线程立即返回线程池，处理完成后再由线程池
+ * 重新执行该任务，发送响应并继续处理该链接上的后续请求。
  */
 public class ClientHandler implements Runnable{
     private Socket socket;
-    public ClientHandler(Socket socket){
+    //异步处理完成后由该线程池继续处理这个链接
+    private Executor executor;
+    //同一个链接上的所有请求共用一个解析器
+    private HttpRequestParser parser = new HttpRequestParser();
+    private InputStream in;
+    private OutputStream out;
+    private WritableByteChannel channel;
+    private int count;//当前链接上已处理的请求数
+    //正在异步处理的请求，处理期间不占用线程，完成后重新执行run发送响应并继续处理后续请求
+    private HttpServletRequest request;
+    private HttpServletResponse response;
+    private boolean keepAlive;
+    private CompletableFuture<?> future;
+
+    public ClientHandler(Socket socket, Executor executor){
         this.socket = socket;
+        this.executor = executor;
     }
     @Override
     public void run() {
+        boolean suspended = false;//是否在等待异步处理，此时不能断开链接
         try {
-            //1解析请求
-            HttpServletRequest request = new HttpServletRequest(socket);
-            HttpServletResponse response = new HttpServletResponse(socket);
-
-            //2处理请求
-            DispatcherServlet servlet = new DispatcherServlet();
-            servlet.service(request,response);
-
-            //3发送响应
-            response.response();
-
+            int timeout = ServerContext.getKeepAliveTimeout();
+            int maxRequests = ServerContext.getKeepAliveMaxRequests();
+            if(future==null) {
+                //空闲超过该时间仍没有读取到新请求则断开链接
+                socket.setSoTimeout(timeout);
+                //每个响应已经合并为尽量少的写操作，不需要Nagle算法再延迟合并
+                socket.setTcpNoDelay(true);
+                in = socket.getInputStream();
+                out = socket.getOutputStream();
+                //响应头和正文通过socket对应的通道一次写出，发送文件时由内核完成传输
+                channel = socket.getChannel();
+            }else if(!completeAsync()){//异步处理已完成，发送它的响应
+                return;
+            }
+            while(keepAlive||count==0) {
+                //1解析请求
+                request = parser.readRequest(in);
+                count++;
+                //上一个响应已经发送完毕，同一个链接上的响应对象重复使用
+                if(response==null) {
+                    response = new HttpServletResponse(out, channel);
+                }else{
+                    response.reset();
+                }
+                //处理请求时可能就开始发送响应，所以先确定是否保持链接
+                keepAlive = request.isKeepAlive() && count < maxRequests;
+                response.setKeepAlive(keepAlive, timeout / 1000);
+
+                try {
+                    //2处理请求
+                    //有效的缓存直接发送，不再经过DispatcherServlet
+                    ResponseCache.CachedResponse cached = ResponseCache.get(request);
+                    CompletableFuture<?> result = null;
+                    if(cached!=null){
+                        response.setCachedResponse(cached);
+                    }else{
+                        result = DispatcherServlet.getInstance().service(request, response);
+                    }
+                    if(result!=null){
+                        //释放当前线程，处理完成后在线程池中继续
+                        future = result;
+                        suspended = true;
+                        result.whenComplete((v, e) -> executor.execute(this));
+                        return;
+                    }
+
+                    //3发送响应
+                    response.response();
+                } finally {
+                    if(!suspended) {
+                        request.release();
+                    }
+                }
+            }
+        } catch (SocketTimeoutException e) {
+            //持久链接空闲超时
         } catch (IOException e) {
             e.printStackTrace();
         } catch (EmptyRequestException e) {
-
-        } finally{
-            //一次HTTP交互后断开链接(HTTP协议要求)
+            //客户端已断开链接
+        } catch (BadRequestException e) {
+            //请求格式有误，告知客户端后断开链接
             try {
-                socket.close();
-            } catch (IOException e) {
-                e.printStackTrace();
+                HttpServletResponse response = new HttpServletResponse(socket.getOutputStream());
+                response.sendBadRequest(e);
+                response.response();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+        } finally{
+            //等待异步处理时链接交给了完成后执行的任务，不能再访问任何字段
+            if(!suspended) {
+                parser.close();
+                try {
+                    socket.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
             }
         }
     }
 
-
-
+    /**
+     * 发送异步处理完成的请求的响应
+     * @return 是否继续处理该链接上的后续请求
+     */
+    private boolean completeAsync() throws IOException {
+        CompletableFuture<?> result = future;
+        Throwable error = DispatcherServlet.getAsyncError(result);
+        future = null;
+        HttpServletResponse detached = null;//失效的响应，Controller方法结束后才能归还它的缓冲区
+        try {
+            if(error!=null){
+                //Controller方法可能仍在写出正文，不能再让它写到链接上
+                detached = response;
+                detached.detach();
+                if(detached.isCommitted()){
+                    //已经开始发送响应，无法再告知客户端，只能断开链接
+                    System.out.println("异步处理失败，断开链接:"+error);
+                    return false;
+                }
+                response = new HttpServletResponse(out, channel);
+                response.setKeepAlive(keepAlive, ServerContext.getKeepAliveTimeout() / 1000);
+                DispatcherServlet.sendAsyncError(response, error);
+            }
+            //3发送响应
+            response.response();
+        } finally {
+            //超时后Controller方法可能仍在使用请求，等它结束后才释放
+            DispatcherServlet.releaseWhenDone(result, request, detached);
+        }
+        return keepAlive;
+    }
 }
-
-
-
-
-
-
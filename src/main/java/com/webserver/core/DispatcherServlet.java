@@ -4,23 +4,49 @@ import com.webserver.annotation.Controller;
 import com.webserver.annotation.RequestMapping;
 import com.webserver.controller.ArticleController;
 import com.webserver.controller.UserController;
+import com.webserver.http.ByteRanges;
+import com.webserver.http.Compression;
 import com.webserver.http.HttpContext;
 import com.webserver.http.HttpServletRequest;
 import com.webserver.http.HttpServletResponse;
+import com.webserver.http.ResponseCache;
+import com.webserver.http.StaticResource;
 
 import java.io.File;
-import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.net.URISyntaxException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * 处理请求的环节
+ * 该类不保存任何与单个请求有关的状态，所有请求共用一个实例。
  */
 public class DispatcherServlet {
+    private static final DispatcherServlet instance = new DispatcherServlet();
     //表示sources下的static目录，实际运行时是编译后target/classes下的static目录。
     private static File staticDir;
+    //static目录下文件的缓存
+    private static StaticResourceCache resourceCache;
+    //检查异步处理是否超时的线程，只负责计时，不处理请求
+    private static ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "async-timeout");
+        t.setDaemon(true);
+        return t;
+    });
+
+    static {
+        //按时完成的请求取消计时后立即从队列中移除，否则每个请求的计时任务都要保留到超时时间为止
+        timer.setRemoveOnCancelPolicy(true);
+    }
 
     static {
         try {
@@ -32,35 +58,173 @@ public class DispatcherServlet {
         } catch (URISyntaxException e) {
             e.printStackTrace();
         }
+        resourceCache = new StaticResourceCache(staticDir);
     }
 
-    public void service(HttpServletRequest request, HttpServletResponse response) {
+    public static DispatcherServlet getInstance() {
+        return instance;
+    }
+
+    /**
+     * 处理请求
+     * @return 同步处理时返回null，此时响应已经可以发送；
+     *         Controller方法异步处理时返回一个CompletableFuture，它完成后才能发送响应，
+     *         超时或处理出错时它以异常完成，调用者应通过sendAsyncError回复客户端
+     */
+    public CompletableFuture<?> service(HttpServletRequest request, HttpServletResponse response) {
         String path = request.getRequestURI();
         System.out.println("请求路径:" + path);
+        boolean gzipAccepted = Compression.acceptsGzip(request.getHeader("Accept-Encoding"));
+        response.setGzipAccepted(gzipAccepted);
+        //HTTP/1.0的客户端不支持分块传输
+        response.setChunkedAllowed("HTTP/1.1".equals(request.getProtocol()));
+        //HEAD请求与GET请求的处理相同(包括静态资源)，只是响应不发送正文
+        response.setHeadRequest("HEAD".equals(request.getMethod()));
         //判断该请求是否为请求某个业务
-        HandlerMapping.MethodMapping methodMapping
-                                = HandlerMapping.getMethod(path);
-        if(methodMapping!=null){//该请求为请求一个业务
-            Object controller = methodMapping.getController();
-            Method method = methodMapping.getMethod();
+        Router.Route route = HandlerMapping.getRoute(path);
+        if(route!=null){//该请求为请求一个业务
+            HandlerMapping.MethodMapping methodMapping = route.getHandler(request.getMethod());
+            if(methodMapping==null){//该路径不支持这种请求方式
+                response.setStatusCode(405);
+                response.setStatusReason("Method Not Allowed");
+                response.addHeader("Allow",route.getAllow());
+                return null;
+            }
+            request.setPathPattern(route.getPattern());
+            ResponseCache.enable(request,response,methodMapping.getCacheTtl());
             try {
-                method.invoke(controller,request,response);
+                Object result = methodMapping.getInvoker().invoke(request,response);
+                if(result instanceof CompletableFuture){
+                    return withTimeout((CompletableFuture<?>) result, methodMapping.getTimeout());
+                }
             } catch (Exception e) {
                 e.printStackTrace();
             }
-            return;
+            return null;
         }
 
-        //去static目录下根据用户请求的抽象路径定位下面的文件
-        File file = new File(staticDir, path);
-        if (file.isFile()) {//实际存在的文件
-            response.setContentFile(file);
+        //去static目录下根据用户请求的抽象路径定位下面的文件(优先从缓存中获取)
+        StaticResource resource = resourceCache.get(path);
+        if (resource!=null) {//实际存在的文件
+            String range = request.getHeader("Range");
+            //支持gzip的客户端使用预先压缩好的版本，先选定版本，再用该版本的ETag判断和回复304
+            StaticResource selected = gzipAccepted?resource.getGzipVariant():resource;
+            if(selected.isNotModified(request)){//客户端缓存的内容仍然有效
+                response.sendNotModified(selected);
+            }else if(range!=null&&"GET".equals(request.getMethod())&&resource.isRangeValid(request)){
+                //只请求部分内容(断点续传，媒体拖动)
+                List<long[]> ranges = ByteRanges.parse(range,resource.getLength());
+                if(ranges==null){//格式不支持时忽略Range
+                    response.setContentResource(resource);
+                }else if(ranges.isEmpty()){
+                    response.sendRangeNotSatisfiable(resource);
+                }else{
+                    response.setContentRanges(resource,ranges);
+                }
+            }else {
+                response.setContentResource(selected);
+            }
         } else {//1:文件不存在  2:是一个目录
             response.setStatusCode(404);
             response.setStatusReason("NotFound");
-            file = new File(staticDir, "/root/404.html");
-            response.setContentFile(file);
+            response.setContentResource(resourceCache.get("/root/404.html"));
         }
+        return null;
+    }
+
+    /**
+     * 返回一个在给定的CompletableFuture完成时完成，但最多等待timeout毫秒的CompletableFuture
+     * 超时后以TimeoutException完成(JDK8没有orTimeout)
+     */
+    private static CompletableFuture<Object> withTimeout(CompletableFuture<?> future, long timeout){
+        AsyncResult result = new AsyncResult(future);
+        ScheduledFuture<?> task = timer.schedule(
+                () -> result.completeExceptionally(new TimeoutException()),
+                timeout, TimeUnit.MILLISECONDS
+        );
+        future.whenComplete((value, e) -> {
+            task.cancel(false);
+            if(e!=null){
+                result.completeExceptionally(e);
+            }else{
+                result.complete(value);
+            }
+        });
+        return result;
+    }
 
+    /**
+     * 异步处理真正结束后释放请求对象
+     * 超时后Controller方法可能仍在运行并读取请求的参数和正文，释放后请求的数组会被其他请求使用，
+     * 所以要等Controller方法返回的CompletableFuture完成后才能释放(它一直不完成时由GC回收)。
+     * @param future service返回的CompletableFuture
+     * @param request
+     */
+    public static void releaseWhenDone(CompletableFuture<?> future, HttpServletRequest request){
+        releaseWhenDone(future, request, null);
+    }
+
+    /**
+     * 异步处理真正结束后释放请求对象以及已经失效(detach)的响应对象
+     * 响应的正文缓冲区同样可能仍在被Controller方法写入
+     * @param response 超时或出错后不再发送的响应，为null表示响应已正常发送
+     */
+    public static void releaseWhenDone(CompletableFuture<?> future, HttpServletRequest request,
+                                       HttpServletResponse response){
+        CompletableFuture<?> handler = future instanceof AsyncResult ? ((AsyncResult) future).handler : future;
+        handler.whenComplete((value, e) -> {
+            request.release();
+            if(response!=null){
+                response.release();
+            }
+        });
+    }
+
+    /**
+     * 获取异步处理失败的原因
+     * @param future service返回的已经完成的CompletableFuture
+     * @return 正常完成时返回null
+     */
+    public static Throwable getAsyncError(CompletableFuture<?> future){
+        try {
+            future.get();
+            return null;
+        } catch (ExecutionException e) {
+            return e.getCause();
+        } catch (CancellationException | InterruptedException e) {
+            return e;
+        }
+    }
+
+    /**
+     * 异步处理超时或出错时回复客户端
+     * 异步处理的代码可能仍在修改原来的响应，所以使用一个新的响应对象，原来的响应由调用者detach
+     * @param response 新创建的响应
+     * @param e 失败的原因
+     */
+    public static void sendAsyncError(HttpServletResponse response, Throwable e){
+        if(e instanceof CompletionException&&e.getCause()!=null){
+            e = e.getCause();
+        }
+        if(e instanceof TimeoutException){
+            System.out.println("异步处理超时");
+            response.setStatusCode(503);
+            response.setStatusReason("Service Unavailable");
+        }else{
+            e.printStackTrace();
+            response.setStatusCode(500);
+            response.setStatusReason("Internal Server Error");
+        }
+    }
+
+    /**
+     * service返回的CompletableFuture，保留Controller方法返回的CompletableFuture
+     */
+    private static class AsyncResult extends CompletableFuture<Object> {
+        private final CompletableFuture<?> handler;
+
+        AsyncResult(CompletableFuture<?> handler) {
+            this.handler = handler;
+        }
     }
 }
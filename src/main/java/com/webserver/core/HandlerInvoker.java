@@ -0,0 +1,24 @@
+package com.webserver.core;
+
+import com.webserver.http.HttpServletRequest;
+import com.webserver.http.HttpServletResponse;
+
+/**
+ * 调用Controller中处理请求的方法
+ * 每个实例已绑定了对应的Controller实例，调用时只需传入请求与响应。
+ * 实例在扫描Controller时通过LambdaMetafactory生成，调用时与直接调用方法一样，
+ * 不再经过反射的参数装箱，访问检查和异常包装。
+ */
+public interface HandlerInvoker {
+    /**
+     * @return 方法的返回值，void方法返回null，异步处理的方法返回CompletableFuture
+     */
+    Object invoke(HttpServletRequest request, HttpServletResponse response) throws Exception;
+
+    /**
+     * 返回值为void的方法先生成该接口的实例，再转换为HandlerInvoker
+     */
+    interface VoidInvoker {
+        void invoke(HttpServletRequest request, HttpServletResponse response) throws Exception;
+    }
+}
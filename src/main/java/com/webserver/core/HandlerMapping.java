@@ -2,73 +2,215 @@ package com.webserver.core;
 
 import com.webserver.annotation.Controller;
 import com.webserver.annotation.RequestMapping;
+import com.webserver.http.HttpServletRequest;
+import com.webserver.http.HttpServletResponse;
+import com.webserver.processor.ControllerProcessor;
 
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Map;
+import java.lang.reflect.Modifier;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
 
 /**
  * 用来维护所有请求路径与对应的Controller中的处理方法
  */
 public class HandlerMapping {
-    private static Map<String,MethodMapping> mapping = new HashMap<>();
+    private static Router router = new Router();
 
     static {
         initMapping();
     }
 
     private static void initMapping(){
+        long start = System.currentTimeMillis();
+        List<String> controllers;
         try {
-            File dir = new File(
-                    HandlerMapping.class.getClassLoader().getResource(
-                            "./com/webserver/controller"
-                    ).toURI()
-            );
-            File[] subs = dir.listFiles(f -> f.getName().endsWith(".class"));
-            for (File sub : subs) {
-                String fileName = sub.getName();
-                String className = fileName.substring(0, fileName.indexOf("."));
-                Class cls = Class.forName("com.webserver.controller." + className);
-                //判断该类是否被@Controller标注了
-                if (cls.isAnnotationPresent(Controller.class)) {
-                    Object o = cls.newInstance();//将该Controller实例化
-                    Method[] methods = cls.getDeclaredMethods();
-                    for (Method method : methods) {
-                        //判断该方法是否被@RequestMapping标注了
-                        if (method.isAnnotationPresent(RequestMapping.class)) {
-                            //获取该注解
-                            RequestMapping rm = method.getAnnotation(RequestMapping.class);
-                            //获取该注解的参数(该方法处理的请求路径)
-                            String path = rm.value();
-                            MethodMapping methodMapping = new MethodMapping(o,method);
-                            System.out.println("扫描的方法:"+method.getName()+",处理的请求:"+path);
-                            mapping.put(path,methodMapping);
-                        }
+            controllers = loadIndex();
+            if(controllers==null){
+                System.out.println("没有找到Controller索引"+ControllerProcessor.INDEX+",扫描controller目录");
+                controllers = scanControllers();
+            }
+        } catch (IOException | URISyntaxException | RuntimeException e) {
+            System.out.println("查找Controller失败");
+            e.printStackTrace();
+            return;
+        }
+        //每个Controller单独处理，一个类加载失败不影响其他Controller
+        for(String className : controllers){
+            try {
+                loadController(className);
+            } catch (VirtualMachineError e) {//内存不足等错误不能忽略
+                throw e;
+            } catch (Throwable e) {//例如类不存在，没有无参构造方法，处理方法的签名不正确
+                System.out.println("加载Controller失败:"+className);
+                e.printStackTrace();
+            }
+        }
+        System.out.println("加载Controller完毕,耗时:"+(System.currentTimeMillis()-start)+"ms");
+    }
+
+    /**
+     * 实例化一个Controller，并登记其中所有被@RequestMapping标注的方法
+     * @param className Controller的完整类名
+     */
+    private static void loadController(String className) throws Throwable {
+        Class<?> cls = Class.forName(className);
+        //判断该类是否被@Controller标注了
+        if (!cls.isAnnotationPresent(Controller.class)) {
+            return;
+        }
+        Object o = cls.getDeclaredConstructor().newInstance();//将该Controller实例化
+        Method[] methods = cls.getDeclaredMethods();
+        for (Method method : methods) {
+            //判断该方法是否被@RequestMapping标注了
+            if (method.isAnnotationPresent(RequestMapping.class)) {
+                //获取该注解
+                RequestMapping rm = method.getAnnotation(RequestMapping.class);
+                //获取该注解的参数(该方法处理的请求路径)
+                String path = rm.value();
+                MethodMapping methodMapping = new MethodMapping(o,method);
+                System.out.println("扫描的方法:"+method.getName()+",处理的请求:"+path
+                        +(rm.method().length>0?","+String.join(",",rm.method()):""));
+                router.add(path,rm.method(),methodMapping);
+            }
+        }
+    }
+
+    /**
+     * 读取编译时由ControllerProcessor生成的Controller索引
+     * 通过类加载器读取，打包成jar后同样有效，多个jar中的索引会合并
+     * @return 所有Controller的完整类名，没有索引时返回null
+     */
+    private static List<String> loadIndex() throws IOException {
+        Enumeration<URL> urls = HandlerMapping.class.getClassLoader().getResources(
+                ControllerProcessor.INDEX
+        );
+        if(!urls.hasMoreElements()){
+            return null;
+        }
+        List<String> controllers = new ArrayList<>();
+        while(urls.hasMoreElements()){
+            try (
+                    BufferedReader br = new BufferedReader(new InputStreamReader(
+                            urls.nextElement().openStream(), StandardCharsets.UTF_8
+                    ));
+            ) {
+                String line;
+                while((line = br.readLine())!=null){
+                    line = line.trim();
+                    if(!line.isEmpty()&&!controllers.contains(line)){
+                        controllers.add(line);
                     }
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
+        return controllers;
     }
 
     /**
-     * 根据请求路径返回对应的处理方法
+     * 没有索引时(例如编译时未执行注解处理器)扫描controller目录下的所有类
+     * 只能在类文件位于目录中时使用
+     */
+    private static List<String> scanControllers() throws URISyntaxException {
+        File dir = new File(
+                HandlerMapping.class.getClassLoader().getResource(
+                        "./com/webserver/controller"
+                ).toURI()
+        );
+        List<String> classNames = new ArrayList<>();
+        File[] subs = dir.listFiles(f -> f.getName().endsWith(".class"));
+        for (File sub : subs) {
+            String fileName = sub.getName();
+            String className = fileName.substring(0, fileName.indexOf("."));
+            classNames.add("com.webserver.controller." + className);
+        }
+        return classNames;
+    }
+
+    /**
+     * 根据请求路径返回对应的路由
      * @param path
+     * @return 没有处理该路径的方法时返回null
+     */
+    public static Router.Route getRoute(String path){
+        return router.find(path);
+    }
+
+    /**
+     * 为Controller的方法生成已绑定该Controller实例的调用器
+     * public方法通过LambdaMetafactory生成一个实现了HandlerInvoker的类，调用时等同于直接调用;
+     * 其他方法无法被生成的类访问，退回到已绑定实例的MethodHandle
+     * @param controller Controller实例
+     * @param method 处理请求的方法，参数为(HttpServletRequest,HttpServletResponse)
      * @return
      */
-    public static MethodMapping getMethod(String path){
-        return mapping.get(path);
+    public static HandlerInvoker createInvoker(Object controller, Method method) throws Throwable {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        boolean isVoid = method.getReturnType()==void.class;
+        MethodType invokeType = MethodType.methodType(
+                isVoid?void.class:Object.class, HttpServletRequest.class, HttpServletResponse.class
+        );
+        if(Modifier.isPublic(method.getModifiers())
+                &&Modifier.isPublic(method.getDeclaringClass().getModifiers())){
+            MethodHandle target = lookup.unreflect(method);
+            //void方法不能直接实现返回Object的接口方法，先实现VoidInvoker
+            Class<?> invokerType = isVoid?HandlerInvoker.VoidInvoker.class:HandlerInvoker.class;
+            CallSite site = LambdaMetafactory.metafactory(
+                    lookup, "invoke",
+                    MethodType.methodType(invokerType, method.getDeclaringClass()),
+                    invokeType, target, target.type().dropParameterTypes(0,1)
+            );
+            Object invoker = site.getTarget().invoke(controller);
+            if(isVoid){
+                HandlerInvoker.VoidInvoker voidInvoker = (HandlerInvoker.VoidInvoker) invoker;
+                return (request, response) -> {
+                    voidInvoker.invoke(request, response);
+                    return null;
+                };
+            }
+            return (HandlerInvoker) invoker;
+        }
+        method.setAccessible(true);
+        MethodHandle handle = lookup.unreflect(method).bindTo(controller)
+                .asType(invokeType.changeReturnType(Object.class));
+        return (request, response) -> {
+            try {
+                return handle.invokeExact(request, response);
+            } catch (Exception | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
     }
 
     public static class MethodMapping{
         private Object controller;
         private Method method;
+        private HandlerInvoker invoker;//扫描时生成，处理请求时不再使用反射
+        private long timeout;//异步处理的超时时间(毫秒)
+        private long cacheTtl;//响应的缓存时间(毫秒)，0表示不缓存
 
-        public MethodMapping(Object controller, Method method) {
+        public MethodMapping(Object controller, Method method) throws Throwable {
             this.controller = controller;
             this.method = method;
+            this.invoker = createInvoker(controller, method);
+            RequestMapping rm = method.getAnnotation(RequestMapping.class);
+            this.timeout = rm!=null&&rm.timeout()>0?rm.timeout():ServerContext.getAsyncTimeout();
+            this.cacheTtl = rm!=null?Math.max(0,rm.cacheTtl()):0;
         }
 
         public Object getController() {
@@ -86,5 +228,17 @@ public class HandlerMapping {
         public void setMethod(Method method) {
             this.method = method;
         }
+
+        public HandlerInvoker getInvoker() {
+            return invoker;
+        }
+
+        public long getTimeout() {
+            return timeout;
+        }
+
+        public long getCacheTtl() {
+            return cacheTtl;
+        }
     }
 }
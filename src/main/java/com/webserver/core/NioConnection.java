@@ -0,0 +1,481 @@
+package com.webserver.core;
+
+import com.webserver.core.NioResponseOutput.FileRegion;
+import com.webserver.http.BadRequestException;
+import com.webserver.http.HttpRequestParser;
+import com.webserver.http.HttpServletRequest;
+import com.webserver.http.HttpServletResponse;
+import com.webserver.http.ResponseCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * nio模式下与一个客户端的连接
+ * 该类的方法除process和complete外都只在所属的I/O循环线程中调用。
+ * I/O循环将客户端发来的数据交给解析器，直到一个完整的请求(请求行，消息头，正文)
+ * 全部到达并解析完毕后才交给线程池处理，处理完毕后生成的响应再由I/O循环写回客户端。
+ * 这样慢速的客户端不会占用线程池中的线程。
+ * 与ClientHandler一样支持持久链接，空闲超时由I/O循环定期检查。
+ *
+ * 支持HTTP/1.1的管线化(pipelining):客户端可以不等响应就连续发送多个请求，
+ * 缓冲区中已完整到达的请求会同时交给线程池处理，但响应严格按照请求的顺序发送。
+ * 每个链接同时处理的请求数有上限，达到上限后暂停读取，避免一个客户端占满线程池。
+ * GET和HEAD以外的请求可能修改数据，它们需要等之前的请求全部完成后才单独处理。
+ * Controller方法异步处理请求时线程池中的线程立即被释放，完成后再生成响应。
+ * 分块发送的大响应在处理期间就逐块交给I/O循环，排在最前面正在发送的响应有
+ * MAX_STREAM_BUFFERS个缓冲区等待发送时，处理请求的线程暂停写出，直到客户端接收了数据。
+ * (排在后面的响应不暂停，否则线程池中的线程可能都在等待还没有开始处理的请求)
+ */
+public class NioConnection {
+    private static final int MAX_STREAM_BUFFERS = 4;//正在发送的响应最多等待发送的缓冲区数
+    private NioEventLoop loop;
+    private SocketChannel channel;
+    private SelectionKey key;
+
+    private HttpRequestParser parser = new HttpRequestParser();
+    //已交给线程池的请求，按照请求的顺序排列
+    private Deque<Exchange> inflight = new ArrayDeque<>();
+    //ByteBuffer或FileRegion，Runnable表示前面的一块分块发送的内容已经写出
+    private Queue<Object> writeQueue = new ArrayDeque<>();
+    private boolean closeAfterWrite;//当前写队列发送完毕后断开链接
+    private boolean lastRequest;//已收到该链接上的最后一个请求，不再解析后续请求
+    private boolean exclusive;//正在单独处理一个可能修改数据的请求
+    private HttpServletRequest pending;//等待之前的请求全部完成后才能处理的请求
+    private boolean closed;
+    private int requestCount;//当前链接上已处理的请求数
+    private long lastActive = System.currentTimeMillis();//最后一次读写的时间
+
+    public NioConnection(NioEventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+    }
+
+    /**
+     * 客户端发来了数据
+     */
+    public void onReadable(){
+        try {
+            int len = parser.read(channel);
+            if(len==-1){//客户端断开了
+                close();
+                return;
+            }
+            lastActive = System.currentTimeMillis();
+            dispatch();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * 将缓冲区中所有已完整到达的请求交给线程池处理
+     */
+    private void dispatch(){
+        flush();
+        if(pending!=null&&inflight.isEmpty()){
+            HttpServletRequest request = pending;
+            pending = null;
+            submit(request,false);
+        }
+        int maxInflight = ServerContext.getPipelineMaxInflight();
+        while(pending==null && !lastRequest && !exclusive && inflight.size()<maxInflight){
+            HttpServletRequest request;
+            try {
+                if(!parser.parse()){//请求还没有全部到达
+                    break;
+                }
+                request = parser.nextRequest();
+            } catch (IOException e) {//正文写入临时文件失败
+                e.printStackTrace();
+                close();
+                return;
+            } catch (BadRequestException e) {
+                //请求格式有误(或正文过大)，在之前的响应之后告知客户端，然后断开链接
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                HttpServletResponse response = new HttpServletResponse(out);
+                response.sendBadRequest(e);
+                try {
+                    response.response();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+                Exchange exchange = new Exchange(true);
+                exchange.complete(Collections.singletonList(ByteBuffer.wrap(out.toByteArray())));
+                inflight.add(exchange);
+                lastRequest = true;
+                break;
+            }
+            String method = request.getMethod();
+            boolean safe = "GET".equals(method)||"HEAD".equals(method);
+            if(!safe&&!inflight.isEmpty()){
+                //等之前的请求全部完成后再处理
+                pending = request;
+                break;
+            }
+            submit(request,safe);
+        }
+        flush();
+        updateInterest();
+    }
+
+    /**
+     * 将一个请求交给线程池处理
+     */
+    private void submit(HttpServletRequest request,boolean safe){
+        int count = ++requestCount;
+        boolean keepAlive = request.isKeepAlive() && count < ServerContext.getKeepAliveMaxRequests();
+        if(!keepAlive){
+            lastRequest = true;
+        }
+        exclusive = !safe;
+        Exchange exchange = new Exchange(!keepAlive);
+        exchange.exclusive = !safe;
+        inflight.add(exchange);
+        loop.getWorkers().execute(()->process(request,keepAlive,exchange));
+    }
+
+    /**
+     * 在线程池中处理一个已解析完毕的请求
+     * @param request 请求对象
+     * @param keepAlive 响应后是否保持链接
+     * @param exchange 该请求在链接中的位置
+     */
+    private void process(HttpServletRequest request,boolean keepAlive,Exchange exchange){
+        NioResponseOutput out = new NioResponseOutput(ServerContext.isZeroCopy());
+        out.setSink(part->stream(exchange,part), ServerContext.getResponseBufferSize());
+        HttpServletResponse response = new HttpServletResponse(out);
+        int timeout = ServerContext.getKeepAliveTimeout();
+        response.setKeepAlive(keepAlive, timeout / 1000);
+        CompletableFuture<?> future = null;
+        try {
+            //2处理请求(有效的缓存直接发送，不再经过DispatcherServlet)
+            ResponseCache.CachedResponse cached = ResponseCache.get(request);
+            if(cached!=null){
+                response.setCachedResponse(cached);
+            }else{
+                future = DispatcherServlet.getInstance().service(request,response);
+            }
+        } finally {
+            if(future==null){
+                try {
+                    complete(response,out,keepAlive,exchange,null);
+                } finally {
+                    request.release();
+                }
+            }
+        }
+        if(future==null){
+            return;
+        }
+        //异步处理时不占用当前线程，完成后再由线程池生成响应
+        CompletableFuture<?> result = future;
+        result.whenComplete((v,e)->loop.getWorkers().execute(()->{
+            Throwable error = DispatcherServlet.getAsyncError(result);
+            try {
+                complete(response,out,keepAlive,exchange,error);
+            } finally {
+                //超时后Controller方法可能仍在使用请求和失效的响应，等它结束后才释放
+                DispatcherServlet.releaseWhenDone(result,request,error==null?null:response);
+            }
+        }));
+    }
+
+    /**
+     * 生成处理完毕的请求的响应，交给I/O循环按顺序发送
+     * @param error 异步处理失败的原因，为null表示处理成功
+     */
+    private void complete(HttpServletResponse response,NioResponseOutput out,
+                          boolean keepAlive,Exchange exchange,Throwable error){
+        boolean abort = false;//已经发送了部分响应，只能断开链接
+        try {
+            if(error!=null){
+                //异步处理的代码可能仍在运行，不再接收它写出的内容
+                response.detach();
+                exchange.abort();
+            }
+            if(error!=null&&response.isCommitted()){
+                System.out.println("异步处理失败，断开链接:"+error);
+                abort = true;
+                out = new NioResponseOutput(false);//原来的输出可能仍在被异步处理的代码使用
+            }else if(error!=null){
+                //异步处理的代码可能仍在修改原来的响应，使用新的响应回复客户端
+                out = new NioResponseOutput(ServerContext.isZeroCopy());
+                response = new HttpServletResponse(out);
+                response.setKeepAlive(keepAlive, ServerContext.getKeepAliveTimeout() / 1000);
+                DispatcherServlet.sendAsyncError(response,error);
+            }
+            //3生成响应
+            if(!abort) {
+                response.response();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            //响应交给I/O循环按顺序发送
+            List<Object> parts = out.getParts();
+            boolean close = abort;
+            loop.execute(()->{
+                if(close){
+                    exchange.close = true;
+                }
+                exchange.complete(parts);
+                if(closed){
+                    release(parts);
+                    return;
+                }
+                if(exchange.exclusive){
+                    exclusive = false;
+                }
+                dispatch();
+            });
+        }
+    }
+
+    /**
+     * 在处理请求的线程中将分块发送的一部分响应交给I/O循环
+     * 该响应正在发送并且等待发送的缓冲区过多时阻塞，直到I/O循环写出了其中一块
+     * @param part ByteBuffer或FileRegion
+     */
+    private void stream(Exchange exchange,Object part) throws IOException {
+        try {
+            exchange.acquire();
+        } catch (IOException e) {
+            release(Collections.singletonList(part));
+            throw e;
+        }
+        loop.execute(()->{
+            if(closed||exchange.done){//已断开或者已经以失败结束
+                release(Collections.singletonList(part));
+                return;
+            }
+            exchange.streamed.add(part);
+            flush();
+        });
+    }
+
+    /**
+     * 将排在最前面并且已经处理完毕的响应依次放入写队列
+     * 正在生成的响应已经交出的部分也放入写队列，之后的响应等它生成完毕后再发送
+     */
+    private void flush(){
+        boolean idle = writeQueue.isEmpty();
+        Exchange exchange;
+        while((exchange = inflight.peek())!=null){
+            for(Object part : exchange.streamed){
+                writeQueue.add(part);
+                writeQueue.add(exchange.ack);
+            }
+            exchange.streamed.clear();
+            if(!exchange.done){
+                exchange.startWriting();
+                break;
+            }
+            inflight.poll();
+            writeQueue.addAll(exchange.parts);
+            if(exchange.close){
+                closeAfterWrite = true;
+                break;
+            }
+        }
+        if(idle&&!writeQueue.isEmpty()){//从现在开始计算写出的超时
+            lastActive = System.currentTimeMillis();
+        }
+        onWritable();
+    }
+
+    /**
+     * 客户端可以继续写入数据了
+     */
+    public void onWritable(){
+        if(closed){
+            return;
+        }
+        try {
+            Object part;
+            while((part = writeQueue.peek())!=null){
+                boolean done;
+                if(part instanceof Runnable){//前面的一块已经写出，唤醒等待的处理线程
+                    ((Runnable)part).run();
+                    done = true;
+                }else if(part instanceof ByteBuffer){
+                    ByteBuffer buffer = (ByteBuffer)part;
+                    if(channel.write(buffer)>0){
+                        lastActive = System.currentTimeMillis();
+                    }
+                    done = !buffer.hasRemaining();
+                }else{//文件由内核直接传输到socket
+                    FileRegion region = (FileRegion)part;
+                    long remaining = region.getRemaining();
+                    done = region.transferTo(channel);
+                    if(region.getRemaining()<remaining){
+                        lastActive = System.currentTimeMillis();
+                    }
+                }
+                if(!done){//客户端接收慢，等可写时再继续
+                    updateInterest();
+                    return;
+                }
+                writeQueue.poll();
+                lastActive = System.currentTimeMillis();
+            }
+            if(closeAfterWrite){
+                close();
+                return;
+            }
+            updateInterest();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    /**
+     * 根据当前状态决定关心的事件:
+     * 有数据要写时关心可写，还能接收新请求时关心可读
+     */
+    private void updateInterest(){
+        if(closed){
+            return;
+        }
+        int ops = 0;
+        if(!writeQueue.isEmpty()){
+            ops |= SelectionKey.OP_WRITE;
+        }
+        if(!lastRequest && !exclusive && pending==null
+                && inflight.size()<ServerContext.getPipelineMaxInflight()){
+            ops |= SelectionKey.OP_READ;
+        }
+        key.interestOps(ops);
+    }
+
+    /**
+     * 检查链接是否超时，由I/O循环定期调用
+     * 没有请求在处理时，超过持久链接的超时时间没有收到数据则断开;
+     * 有内容等待发送时，超过该时间客户端一直没有接收数据同样断开，
+     * 否则不读取响应的客户端会使链接和等待写出的处理线程一直被占用
+     * @param now 当前时间
+     */
+    public void checkIdle(long now){
+        if((inflight.isEmpty() || !writeQueue.isEmpty())
+                && now-lastActive>ServerContext.getKeepAliveTimeout()){
+            close();
+        }
+    }
+
+    private void close(){
+        if(closed){
+            return;
+        }
+        closed = true;
+        key.cancel();
+        //删除尚未接收完的正文的临时文件
+        parser.close();
+        if(pending!=null){
+            pending.release();
+            pending = null;
+        }
+        //释放尚未发送完的文件
+        release(writeQueue);
+        writeQueue.clear();
+        for(Exchange exchange : inflight){
+            //唤醒暂停写出的处理线程，它之后的写出会失败
+            exchange.abort();
+            release(exchange.streamed);
+            exchange.streamed.clear();
+            if(exchange.done){
+                release(exchange.parts);
+            }
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void release(Collection<Object> parts){
+        for(Object part : parts){
+            if(part instanceof FileRegion){
+                ((FileRegion)part).close();
+            }
+        }
+    }
+
+    /**
+     * 链接上的一次请求与响应
+     * 除了acquire以及标记为线程间共享的字段外，只在I/O循环线程中访问
+     */
+    private static class Exchange {
+        private boolean close;//该响应发送后断开链接
+        private boolean exclusive;//是否为需要单独处理的请求
+        private boolean done;//响应是否已生成完毕
+        private List<Object> parts;//响应的内容(生成完毕后剩余的部分)
+        private List<Object> streamed = new ArrayList<>();//生成期间已交出但还没有放入写队列的部分
+        //以下字段由处理线程和I/O循环共享，通过该对象的锁访问
+        private int unsent;//已交出但还没有写出的块数
+        private boolean writing;//是否已经轮到该响应发送
+        private boolean aborted;//链接已断开或者异步处理已经失败，不再接收新的块
+        private final Runnable ack = this::sent;//放在写队列中每一块之后
+
+        Exchange(boolean close) {
+            this.close = close;
+        }
+
+        void complete(List<Object> parts){
+            this.parts = parts;
+            this.done = true;
+        }
+
+        /**
+         * 处理线程交出一块之前调用，正在发送并且等待发送的块过多时等待
+         * 链接已断开，异步处理已经失败，或者超过持久链接的超时时间客户端仍未接收数据时抛出异常
+         */
+        synchronized void acquire() throws IOException {
+            long deadline = System.currentTimeMillis() + ServerContext.getKeepAliveTimeout();
+            while(writing&&!aborted&&unsent>=MAX_STREAM_BUFFERS){
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining<=0){//客户端不接收数据，不再继续生成响应
+                    aborted = true;
+                    throw new IOException("等待客户端接收响应超时");
+                }
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("等待发送响应时被中断");
+                }
+            }
+            if(aborted){
+                throw new IOException("链接已断开或请求已超时");
+            }
+            unsent++;
+        }
+
+        synchronized void sent(){
+            unsent--;
+            notifyAll();
+        }
+
+        synchronized void startWriting(){
+            writing = true;
+        }
+
+        synchronized void abort(){
+            aborted = true;
+            notifyAll();
+        }
+    }
+}
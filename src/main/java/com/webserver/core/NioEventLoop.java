@@ -0,0 +1,122 @@
+package com.webserver.core;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * nio模式下的I/O循环
+ * 每个I/O循环独占一个线程和一个Selector，负责其名下所有连接的读写。
+ * 其他线程(接收线程，处理请求的线程池)不能直接操作这些连接，而是通过execute方法
+ * 将任务交给I/O循环所在的线程执行，这样每个连接始终只被一个线程读写。
+ */
+public class NioEventLoop implements Runnable{
+    private Selector selector;
+    private ExecutorService workers;//处理请求的线程池
+    private Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private Thread thread;
+    private long lastIdleCheck = System.currentTimeMillis();
+
+    public NioEventLoop(String name,ExecutorService workers) throws IOException {
+        this.selector = Selector.open();
+        this.workers = workers;
+        this.thread = new Thread(this,name);
+    }
+
+    public void start(){
+        thread.start();
+    }
+
+    /**
+     * 将一个新接收的客户端交给当前I/O循环管理
+     * @param channel
+     */
+    public void register(SocketChannel channel){
+        execute(()->{
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                key.attach(new NioConnection(this,channel,key));
+            } catch (IOException e) {
+                e.printStackTrace();
+                try {
+                    channel.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * 将任务交给I/O循环所在的线程执行
+     * @param task
+     */
+    public void execute(Runnable task){
+        tasks.offer(task);
+        selector.wakeup();
+    }
+
+    public ExecutorService getWorkers() {
+        return workers;
+    }
+
+    @Override
+    public void run() {
+        while(true){
+            try {
+                selector.select(1000);
+                runTasks();
+                checkIdle();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()){
+                    SelectionKey key = it.next();
+                    it.remove();
+                    NioConnection connection = (NioConnection)key.attachment();
+                    if(key.isValid()&&key.isReadable()){
+                        connection.onReadable();
+                    }
+                    if(key.isValid()&&key.isWritable()){
+                        connection.onWritable();
+                    }
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 每秒检查一次所有链接是否空闲超时
+     */
+    private void checkIdle(){
+        long now = System.currentTimeMillis();
+        if(now-lastIdleCheck<1000){
+            return;
+        }
+        lastIdleCheck = now;
+        for(SelectionKey key : selector.keys()){
+            NioConnection connection = (NioConnection)key.attachment();
+            if(key.isValid()&&connection!=null){
+                connection.checkIdle(now);
+            }
+        }
+    }
+
+    private void runTasks(){
+        Runnable task;
+        while((task = tasks.poll())!=null){
+            try {
+                task.run();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
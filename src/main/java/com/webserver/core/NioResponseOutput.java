@@ -0,0 +1,220 @@
+package com.webserver.core;
+
+import com.webserver.http.BufferPool;
+import com.webserver.http.FileTransfer;
+import com.webserver.http.SharedDataTransfer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * nio模式下的响应输出
+ * 处理请求的线程通过它写出的响应内容先暂存起来，处理完毕后一并交给I/O循环发送。
+ * 设置了Sink时，暂存的内容达到阈值或者调用flush(分块发送的响应每次flushBuffer)时
+ * 立即交给Sink，因此分块发送的大响应在内存中只保留有限的几个缓冲区。
+ * 文件内容不会读入内存，只记录下要发送的文件区域，由I/O循环通过FileChannel.transferTo
+ * 直接从文件传输到socket。
+ * 缓存中的内容(静态资源，缓存的响应)不会再被修改，直接引用而不复制。
+ */
+public class NioResponseOutput extends OutputStream implements FileTransfer, SharedDataTransfer {
+    //小于该长度的不变数据仍复制到暂存区，与前后的内容合并为一次写出
+    private static final int MIN_SHARED_SIZE = 4 * 1024;
+    private List<Object> parts = new ArrayList<>();//依次为ByteBuffer或FileRegion
+    private ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    private boolean zeroCopy;
+    private Sink sink;//处理完毕前就发送的内容的去向，为null时全部暂存
+    private int threshold;//暂存的字节数达到该值时交给sink
+
+    /**
+     * 接收处理完毕前就可以发送的响应内容
+     */
+    public interface Sink {
+        /**
+         * 发送一部分响应内容，发送不过来时阻塞调用的线程
+         * @param part ByteBuffer或FileRegion
+         */
+        void send(Object part) throws IOException;
+    }
+
+    /**
+     * @param zeroCopy 是否以零拷贝的方式发送文件，为false时将文件内容读入内存
+     */
+    public NioResponseOutput(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
+    }
+
+    /**
+     * 设置处理完毕前就发送的内容的去向
+     * @param sink
+     * @param threshold 暂存的字节数达到该值时交给sink
+     */
+    public void setSink(Sink sink, int threshold) {
+        this.sink = sink;
+        this.threshold = threshold;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        buffer.write(b);
+        if(sink!=null&&buffer.size()>=threshold){
+            flush();
+        }
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if(sink!=null&&len>=threshold){//大块数据只复制一次，直接交给sink
+            flushBuffer();
+            parts.add(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off+len)));
+            flush();
+            return;
+        }
+        buffer.write(b, off, len);
+        if(sink!=null&&buffer.size()>=threshold){
+            flush();
+        }
+    }
+
+    @Override
+    public void transferShared(ByteBuffer data) throws IOException {
+        if(data.remaining()<MIN_SHARED_SIZE){
+            write(data.array(), data.arrayOffset()+data.position(), data.remaining());
+            return;
+        }
+        flushBuffer();
+        //slice使每个响应有自己的读取位置，多个链接可以同时发送同一个数组
+        parts.add(data.slice());
+        if(sink!=null&&data.remaining()>=threshold){
+            flush();
+        }
+    }
+
+    /**
+     * 将暂存的内容交给sink
+     */
+    @Override
+    public void flush() throws IOException {
+        if(sink==null){
+            return;
+        }
+        flushBuffer();
+        for(int i=0;i<parts.size();i++){
+            try {
+                sink.send(parts.get(i));
+            } catch (IOException e) {
+                //没有交出去的文件区域需要在这里关闭
+                for(int j=i+1;j<parts.size();j++){
+                    if(parts.get(j) instanceof FileRegion){
+                        ((FileRegion)parts.get(j)).close();
+                    }
+                }
+                parts.clear();
+                throw e;
+            }
+        }
+        parts.clear();
+    }
+
+    @Override
+    public void transferFile(File file, long position, long count) throws IOException {
+        if(!zeroCopy){
+            try (
+                    FileInputStream fis = new FileInputStream(file);
+            ) {
+                fis.skip(position);
+                byte[] buf = BufferPool.acquire(1024 * 8);
+                try {
+                    int len;
+                    while (count>0&&(len = fis.read(buf,0,(int)Math.min(buf.length,count))) != -1) {
+                        write(buf, 0, len);
+                        count -= len;
+                    }
+                    if(count>0){
+                        throw new IOException("文件在发送期间被截短了:"+file);
+                    }
+                } finally {
+                    BufferPool.release(buf);
+                }
+            }
+            return;
+        }
+        flushBuffer();
+        FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        parts.add(new FileRegion(fc, position, count));
+    }
+
+    /**
+     * 获取所有还没有交给sink的内容
+     * @return
+     */
+    public List<Object> getParts(){
+        flushBuffer();
+        return parts;
+    }
+
+    private void flushBuffer(){
+        if(buffer.size()>0){
+            parts.add(ByteBuffer.wrap(buffer.toByteArray()));
+            buffer.reset();
+        }
+    }
+
+    /**
+     * 文件中要发送的一段区域
+     */
+    public static class FileRegion {
+        private FileChannel fc;
+        private long position;
+        private long remaining;
+
+        public FileRegion(FileChannel fc, long position, long remaining) {
+            this.fc = fc;
+            this.position = position;
+            this.remaining = remaining;
+        }
+
+        /**
+         * 尽可能多地将剩余内容传输到socket
+         * @return true表示已全部传输完毕
+         */
+        public boolean transferTo(SocketChannel channel) throws IOException {
+            while(remaining>0){
+                long len = fc.transferTo(position, remaining, channel);
+                if(len<=0){
+                    if(position>=fc.size()){
+                        //文件在发送期间被截短了，正文不足Content-Length，只能断开链接
+                        close();
+                        throw new IOException("文件在发送期间被截短了");
+                    }
+                    return false;//socket发送缓冲区已满
+                }
+                position += len;
+                remaining -= len;
+            }
+            close();
+            return true;
+        }
+
+        public long getRemaining() {
+            return remaining;
+        }
+
+        public void close(){
+            try {
+                fc.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package com.webserver.core;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * nio模式的服务端
+ * 由一个接收线程负责接收客户端的链接，再将链接轮流分配给若干个I/O循环(通常与CPU核数相同)。
+ * 每个I/O循环用一个线程通过Selector同时管理大量链接，只有完整读取到的请求才会交给
+ * 线程池去执行DispatcherServlet，因此链接数量不再受线程数量的限制。
+ */
+public class NioServer {
+    private ServerSocketChannel serverChannel;
+    private NioEventLoop[] loops;
+    private int next;//下一个链接分配给哪个I/O循环
+
+    public NioServer(int port, int ioThreads, ExecutorService workers) throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port),1024);
+        loops = new NioEventLoop[ioThreads];
+        for(int i=0;i<loops.length;i++){
+            loops[i] = new NioEventLoop("nio-io-"+i,workers);
+        }
+    }
+
+    /**
+     * 启动所有I/O循环，并在当前线程中开始接收客户端的链接
+     */
+    public void start(){
+        for(NioEventLoop loop : loops){
+            loop.start();
+        }
+        try {
+            while(true){
+                SocketChannel channel = serverChannel.accept();
+                loops[next++ % loops.length].register(channel);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
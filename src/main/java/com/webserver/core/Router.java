@@ -0,0 +1,237 @@
+package com.webserver.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * 路由表
+ * 按照请求路径的每一段(两个"/"之间的部分)组织成一棵树，查找时从根开始每段只比较一次，
+ * 耗时只与路径的长度有关，与路由的数量无关，并且查找过程不创建任何对象。
+ * 路径中的每一段可以是:
+ * 固定的名字     例如:/myweb/article
+ * 路径变量       例如:/myweb/article/{id}  匹配任意一段非空内容
+ * 通配路径变量   例如:/myweb/files/{*path} 只能是最后一段，匹配剩余的全部路径
+ * 同一位置上固定的名字优先于路径变量，路径变量优先于通配路径变量，匹配失败时回退尝试下一种。
+ */
+public class Router {
+    private Node root = new Node();
+
+    /**
+     * 添加一个路由
+     * @param pattern 路径 例如:/myweb/article/{id}
+     * @param methods 处理的请求方式，为空表示处理所有请求方式
+     * @param handler 处理该请求的方法
+     */
+    public void add(String pattern, String[] methods, HandlerMapping.MethodMapping handler){
+        if(!pattern.startsWith("/")){
+            throw new IllegalArgumentException("路径必须以/开头:"+pattern);
+        }
+        Node node = root;
+        String[] segments = pattern.substring(1).split("/",-1);
+        for(int i=0;i<segments.length;i++){
+            String segment = segments[i];
+            if(segment.startsWith("{*")&&segment.endsWith("}")){
+                if(i!=segments.length-1){
+                    throw new IllegalArgumentException("通配路径变量只能是最后一段:"+pattern);
+                }
+                if(node.catchAll==null){
+                    node.catchAll = new Node();
+                }
+                node = node.catchAll;
+            }else if(segment.startsWith("{")&&segment.endsWith("}")){
+                if(node.param==null){
+                    node.param = new Node();
+                }
+                node = node.param;
+            }else{
+                node = node.addStatic(segment);
+            }
+        }
+        if(node.route==null){
+            node.route = new Route(pattern);
+        }else if(!node.route.pattern.equals(pattern)){
+            //例如/a/{id}与/a/{name}，同一个位置的路径变量只能有一种写法
+            throw new IllegalArgumentException("路径"+pattern+"与"+node.route.pattern+"冲突");
+        }
+        node.route.add(methods, handler);
+    }
+
+    /**
+     * 根据请求路径查找对应的路由
+     * @param path 请求路径(不含参数部分) 例如:/myweb/article/12
+     * @return 没有匹配的路由时返回null
+     */
+    public Route find(String path){
+        if(path==null||!path.startsWith("/")){
+            return null;
+        }
+        return match(root, path, 1);
+    }
+
+    /**
+     * 从给定节点开始匹配路径中剩余的部分
+     * @param pos 剩余部分中第一段的开始位置
+     */
+    private Route match(Node node, String path, int pos){
+        if(pos>path.length()){//路径的每一段都已匹配
+            return node.route;
+        }
+        int end = path.indexOf('/', pos);
+        if(end==-1){
+            end = path.length();
+        }
+        Node child = node.findStatic(path, pos, end);
+        if(child!=null){
+            Route route = match(child, path, end+1);
+            if(route!=null){
+                return route;
+            }
+        }
+        if(node.param!=null&&end>pos){
+            Route route = match(node.param, path, end+1);
+            if(route!=null){
+                return route;
+            }
+        }
+        if(node.catchAll!=null){
+            return node.catchAll.route;
+        }
+        return null;
+    }
+
+    /**
+     * 树中的一个节点，对应路径中的一段
+     */
+    private static class Node {
+        //固定名字的子节点，按照名字排序以便二分查找
+        private String[] keys = new String[0];
+        private Node[] children = new Node[0];
+        private Node param;//路径变量子节点
+        private Node catchAll;//通配路径变量子节点
+        private Route route;//路径在此结束时对应的路由
+
+        Node addStatic(String key){
+            int index = Arrays.binarySearch(keys, key);
+            if(index>=0){
+                return children[index];
+            }
+            index = -index-1;
+            Node child = new Node();
+            String[] newKeys = new String[keys.length+1];
+            Node[] newChildren = new Node[children.length+1];
+            System.arraycopy(keys,0,newKeys,0,index);
+            System.arraycopy(children,0,newChildren,0,index);
+            newKeys[index] = key;
+            newChildren[index] = child;
+            System.arraycopy(keys,index,newKeys,index+1,keys.length-index);
+            System.arraycopy(children,index,newChildren,index+1,children.length-index);
+            keys = newKeys;
+            children = newChildren;
+            return child;
+        }
+
+        /**
+         * 查找名字与path中[from,to)部分相同的子节点，不截取字符串
+         */
+        Node findStatic(String path, int from, int to){
+            int low = 0;
+            int high = keys.length-1;
+            while(low<=high){
+                int mid = (low+high)>>>1;
+                int c = compare(keys[mid], path, from, to);
+                if(c<0){
+                    low = mid+1;
+                }else if(c>0){
+                    high = mid-1;
+                }else{
+                    return children[mid];
+                }
+            }
+            return null;
+        }
+
+        //与String.compareTo的顺序一致
+        private static int compare(String key, String path, int from, int to){
+            int len = to-from;
+            int n = Math.min(key.length(), len);
+            for(int i=0;i<n;i++){
+                int c = key.charAt(i)-path.charAt(from+i);
+                if(c!=0){
+                    return c;
+                }
+            }
+            return key.length()-len;
+        }
+    }
+
+    /**
+     * 一个路由，即一个路径以及处理该路径下各种请求方式的方法
+     */
+    public static class Route {
+        private String pattern;
+        private String[] methods = new String[0];
+        private HandlerMapping.MethodMapping[] handlers = new HandlerMapping.MethodMapping[0];
+        private HandlerMapping.MethodMapping anyHandler;//处理所有请求方式的方法
+        private String allow;//响应头Allow的值
+
+        Route(String pattern) {
+            this.pattern = pattern;
+        }
+
+        private void add(String[] methods, HandlerMapping.MethodMapping handler){
+            if(methods.length==0){
+                if(anyHandler!=null){
+                    throw new IllegalArgumentException("重复的路径:"+pattern);
+                }
+                anyHandler = handler;
+                return;
+            }
+            List<String> methodList = new ArrayList<>(Arrays.asList(this.methods));
+            List<HandlerMapping.MethodMapping> handlerList = new ArrayList<>(Arrays.asList(handlers));
+            for(String method : methods){
+                method = method.toUpperCase();
+                if(methodList.contains(method)){
+                    throw new IllegalArgumentException("重复的路径:"+method+" "+pattern);
+                }
+                methodList.add(method);
+                handlerList.add(handler);
+            }
+            this.methods = methodList.toArray(new String[0]);
+            this.handlers = handlerList.toArray(new HandlerMapping.MethodMapping[0]);
+            //支持GET的路径同样支持HEAD
+            if(methodList.contains("GET")&&!methodList.contains("HEAD")){
+                methodList.add("HEAD");
+            }
+            this.allow = String.join(", ", methodList);
+        }
+
+        /**
+         * 获取处理给定请求方式的方法
+         * @param method 请求方式 例如:GET
+         * @return 该路径不支持该请求方式时返回null
+         */
+        public HandlerMapping.MethodMapping getHandler(String method){
+            for(int i=0;i<methods.length;i++){
+                if(methods[i].equals(method)){
+                    return handlers[i];
+                }
+            }
+            if(anyHandler!=null){
+                return anyHandler;
+            }
+            return "HEAD".equals(method)?getHandler("GET"):null;
+        }
+
+        /**
+         * 该路径支持的所有请求方式，用于回复405时的响应头Allow
+         */
+        public String getAllow() {
+            return allow;
+        }
+
+        public String getPattern() {
+            return pattern;
+        }
+    }
+}
@@ -0,0 +1,187 @@
+package com.webserver.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * 当前类用于维护服务端的所有配置信息
+ * 配置信息来自sources下的server.properties，未配置的项使用默认值
+ */
+public class ServerContext {
+    private static Properties properties = new Properties();
+
+    static {
+        initConfig();
+    }
+
+    private static void initConfig(){
+        try (
+                InputStream in = ServerContext.class.getClassLoader().getResourceAsStream(
+                        "server.properties"
+                )
+        ) {
+            if(in!=null){
+                properties.load(in);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 获取一个字符串类型的配置项
+     * @param name 配置项的名字
+     * @param defaultValue 未配置时使用的默认值
+     * @return
+     */
+    public static String getString(String name,String defaultValue){
+        //启动参数-Dname=value优先于配置文件
+        String value = System.getProperty(name,properties.getProperty(name));
+        return value==null?defaultValue:value.trim();
+    }
+
+    /**
+     * 获取所有以给定前缀开头的配置项
+     * @param prefix 例如:static.cache-control.
+     * @return key为去掉前缀后的名字，value为配置的值
+     */
+    public static Map<String,String> getStrings(String prefix){
+        Map<String,String> map = new HashMap<>();
+        for(String name : properties.stringPropertyNames()){
+            if(name.startsWith(prefix)){
+                map.put(name.substring(prefix.length()),getString(name,""));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * 获取一个整数类型的配置项
+     * @param name 配置项的名字
+     * @param defaultValue 未配置或配置有误时使用的默认值
+     * @return
+     */
+    public static int getInt(String name,int defaultValue){
+        String value = getString(name,null);
+        if(value==null||!value.matches("-?[0-9]+")){
+            return defaultValue;
+        }
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * 服务端监听的端口
+     */
+    public static int getPort(){
+        return getInt("server.port",8088);
+    }
+
+    /**
+     * 传输模式 bio或nio
+     */
+    public static String getTransport(){
+        return getString("server.transport","bio");
+    }
+
+    /**
+     * 处理请求的线程池大小
+     */
+    public static int getThreads(){
+        return getInt("server.threads",50);
+    }
+
+    /**
+     * 处理请求的线程类型 platform(固定大小的线程池)或virtual(每个任务一个虚拟线程)
+     */
+    public static String getExecutor(){
+        return getString("server.executor","platform");
+    }
+
+    /**
+     * nio模式下I/O循环的数量
+     */
+    public static int getIoThreads(){
+        int n = getInt("server.io-threads",0);
+        return n>0?n:Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * 持久链接的空闲超时时间(毫秒)
+     */
+    public static int getKeepAliveTimeout(){
+        return getInt("server.keep-alive.timeout",5000);
+    }
+
+    /**
+     * 一个持久链接上最多处理的请求数
+     */
+    public static int getKeepAliveMaxRequests(){
+        return getInt("server.keep-alive.max-requests",100);
+    }
+
+    /**
+     * 请求正文的最大长度，超出时回复413
+     */
+    public static int getMaxBodySize(){
+        return getInt("server.request.max-body-size",10 * 1024 * 1024);
+    }
+
+    /**
+     * 请求正文(以及上传文件的每一部分)超过该长度时保存到临时文件中
+     */
+    public static int getBodyMemoryLimit(){
+        return getInt("server.request.body-memory-limit",64 * 1024);
+    }
+
+    /**
+     * 动态响应正文的缓冲区大小，正文超出该大小时以分块传输的方式边生成边发送
+     */
+    public static int getResponseBufferSize(){
+        return Math.max(512,getInt("server.response.buffer-size",8192));
+    }
+
+    /**
+     * 缓冲区池最多缓存的字节数，请求数据和响应正文的缓冲区用完后归还到池中重复使用
+     */
+    public static int getBufferPoolMaxBytes(){
+        return Math.max(0,getInt("server.buffer-pool.max-bytes",4 * 1024 * 1024));
+    }
+
+    /**
+     * 是否检查缓冲区池的泄漏(用完没有归还，或者重复归还)，会记录每次借出时的调用栈，只在调试时开启
+     */
+    public static boolean isBufferLeakDetection(){
+        return Boolean.parseBoolean(getString("server.buffer-pool.leak-detection","false"));
+    }
+
+    /**
+     * 响应缓存(@RequestMapping的cacheTtl)最多保存的路径数
+     */
+    public static int getResponseCacheMaxEntries(){
+        return Math.max(0,getInt("server.response-cache.max-entries",1000));
+    }
+
+    /**
+     * 异步处理请求(Controller方法返回CompletableFuture)的默认超时时间(毫秒)，超时后回复503
+     */
+    public static long getAsyncTimeout(){
+        return Math.max(1,getInt("server.async.timeout",30000));
+    }
+
+    /**
+     * nio模式下一个链接上最多同时处理的管线化请求数
+     */
+    public static int getPipelineMaxInflight(){
+        return Math.max(1,getInt("server.pipeline.max-inflight",8));
+    }
+
+    /**
+     * 发送静态文件时是否使用零拷贝(FileChannel.transferTo)
+     */
+    public static boolean isZeroCopy(){
+        return Boolean.parseBoolean(getString("server.zero-copy","true"));
+    }
+}
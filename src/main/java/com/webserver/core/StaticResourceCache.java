@@ -0,0 +1,174 @@
+package com.webserver.core;
+
+import com.webserver.http.StaticResource;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 静态资源缓存
+ * 以请求路径为key缓存static目录下的文件，命中时不再访问磁盘。
+ * 缓存的总字节数受配置限制，超出时按照最近最少使用(LRU)的顺序淘汰。
+ * 不存在的路径也会被记录下来(数量有限)，避免扫描器反复访问文件系统。
+ * 每个缓存项在配置的时间间隔后才会重新检查文件是否被修改。
+ * 每个目录可以单独配置响应头Cache-Control，子目录未配置时使用上级目录的配置。
+ */
+public class StaticResourceCache {
+    private File staticDir;
+    private String staticPath;//static目录规范化后的路径，用于防止访问目录外的文件
+    private long maxBytes;//缓存的总字节数上限
+    private long maxFileSize;//超过该大小的文件只缓存文件信息，不缓存内容
+    private long revalidate;//多久后重新检查文件是否被修改(毫秒)
+    private int maxMissing;//最多记录多少个不存在的路径
+    //key:static下的目录 例如:/myweb  value:该目录下文件的Cache-Control
+    private Map<String,String> cacheControls;
+
+    private long totalBytes;
+    private Map<String,Entry> resources = new LinkedHashMap<>(16,0.75f,true);
+    private Map<String,Entry> missing;
+
+    public StaticResourceCache(File staticDir) {
+        this.staticDir = staticDir;
+        try {
+            this.staticPath = staticDir.getCanonicalPath() + File.separator;
+        } catch (IOException e) {
+            this.staticPath = staticDir.getAbsolutePath() + File.separator;
+        }
+        this.maxBytes = ServerContext.getInt("static.cache.max-bytes",32 * 1024 * 1024);
+        this.maxFileSize = ServerContext.getInt("static.cache.max-file-size",1024 * 1024);
+        this.revalidate = ServerContext.getInt("static.cache.revalidate",2000);
+        this.maxMissing = ServerContext.getInt("static.cache.max-missing",10000);
+        this.cacheControls = ServerContext.getStrings("static.cache-control.");
+        this.missing = new LinkedHashMap<String,Entry>(16,0.75f,true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size()>maxMissing;
+            }
+        };
+    }
+
+    /**
+     * 根据请求路径获取对应的静态资源
+     * @param path 请求路径 例如:/myweb/index.html
+     * @return 不存在(或是一个目录)时返回null
+     */
+    public StaticResource get(String path){
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this){
+            entry = resources.get(path);
+            if(entry==null){
+                entry = missing.get(path);
+            }
+        }
+        if(entry!=null&&(revalidate<=0||now-entry.checkedAt<revalidate)){
+            return entry.resource;
+        }
+        if(entry!=null&&entry.resource!=null){
+            //检查文件是否被修改，未修改时继续使用缓存的内容
+            File file = entry.resource.getFile();
+            if(file.isFile()&&file.lastModified()==entry.resource.getLastModified()
+                    &&file.length()==entry.resource.getLength()){
+                entry.checkedAt = now;
+                return entry.resource;
+            }
+        }
+        //加载文件的过程不持有锁，多个线程同时加载同一个文件也只是重复读取一次
+        Entry loaded = load(path, now);
+        synchronized (this){
+            remove(path);
+            if(loaded.resource==null){
+                missing.put(path,loaded);
+            }else{
+                resources.put(path,loaded);
+                totalBytes += loaded.size;
+                evict();
+            }
+        }
+        return loaded.resource;
+    }
+
+    /**
+     * 从磁盘加载一个文件
+     */
+    private Entry load(String path,long now){
+        File file = new File(staticDir, path);
+        try {
+            //不允许通过../等方式访问static目录以外的文件
+            if(!file.isFile()||!file.getCanonicalPath().startsWith(staticPath)){
+                return new Entry(null,0,now);
+            }
+            long length = file.length();
+            long lastModified = file.lastModified();
+            byte[] data = null;
+            if(length<=maxFileSize){
+                data = Files.readAllBytes(file.toPath());
+                length = data.length;
+            }
+            StaticResource resource = new StaticResource(
+                    file,length,lastModified,data,getCacheControl(path)
+            );
+            return new Entry(resource,data==null?0:data.length,now);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return new Entry(null,0,now);
+        }
+    }
+
+    /**
+     * 获取路径所在目录(或最近的上级目录)配置的Cache-Control
+     * @param path 例如:/myweb/images/logo.png 依次查找/myweb/images,/myweb,/
+     * @return 没有配置时返回null
+     */
+    private String getCacheControl(String path){
+        int index = path.lastIndexOf('/');
+        while(index>0){
+            path = path.substring(0,index);
+            String value = cacheControls.get(path);
+            if(value!=null){
+                return value;
+            }
+            index = path.lastIndexOf('/');
+        }
+        return cacheControls.get("/");
+    }
+
+    private void remove(String path){
+        Entry old = resources.remove(path);
+        if(old!=null){
+            totalBytes -= old.size;
+        }
+        missing.remove(path);
+    }
+
+    /**
+     * 淘汰最近最少使用的缓存项，直到总字节数不超过上限
+     */
+    private void evict(){
+        Iterator<Entry> it = resources.values().iterator();
+        while(totalBytes>maxBytes&&it.hasNext()){
+            Entry eldest = it.next();
+            totalBytes -= eldest.size;
+            it.remove();
+        }
+    }
+
+    /**
+     * 缓存项
+     */
+    private static class Entry {
+        private StaticResource resource;//为null表示该路径不存在
+        private long size;//缓存内容占用的字节数
+        private volatile long checkedAt;//最后一次检查文件的时间
+
+        Entry(StaticResource resource, long size, long checkedAt) {
+            this.resource = resource;
+            this.size = size;
+            this.checkedAt = checkedAt;
+        }
+    }
+}
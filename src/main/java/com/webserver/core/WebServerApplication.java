@@ -1,8 +1,11 @@
 package com.webserver.core;
 
 import java.io.IOException;
-import java.net.ServerSocket;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 
@@ -16,28 +19,64 @@ import java.util.concurrent.Executors;
  *   通过网络远程调用容器中的某个网络应用
  */
 public class WebServerApplication {
-    private ServerSocket serverSocket;
+    //通过通道接收的socket才能使用FileChannel.transferTo发送文件
+    private ServerSocketChannel serverSocket;
+    private NioServer nioServer;//nio模式下使用
     private ExecutorService threadPool;
 
     public WebServerApplication(){
         try {
             System.out.println("正在启动服务端...");
-            serverSocket = new ServerSocket(8088);
-            threadPool = Executors.newFixedThreadPool(50);
-            System.out.println("服务端启动完毕!");
-        } catch (IOException e) {
+            threadPool = createThreadPool();
+            //启动时就加载所有Controller，不让第一个请求等待
+            Class.forName(HandlerMapping.class.getName());
+            if("nio".equals(ServerContext.getTransport())){
+                nioServer = new NioServer(
+                        ServerContext.getPort(),ServerContext.getIoThreads(),threadPool
+                );
+            }else {
+                serverSocket = ServerSocketChannel.open();
+                serverSocket.bind(new InetSocketAddress(ServerContext.getPort()));
+            }
+            System.out.println("服务端启动完毕!传输模式:"+ServerContext.getTransport()
+                    +",线程类型:"+ServerContext.getExecutor());
+        } catch (IOException | ClassNotFoundException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * 根据配置创建处理请求的线程池
+     * 虚拟线程在阻塞于socket或文件读写时会让出所在的平台线程，因此每个客户端可以独占一个
+     * 虚拟线程，并发数不再受线程池大小的限制。
+     * 项目以JDK8编译，所以通过反射调用JDK21新增的Executors.newVirtualThreadPerTaskExecutor
+     */
+    private ExecutorService createThreadPool(){
+        if("virtual".equals(ServerContext.getExecutor())){
+            try {
+                Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+                return (ExecutorService) method.invoke(null);
+            } catch (NoSuchMethodException e) {
+                System.out.println("当前JDK不支持虚拟线程,使用平台线程池");
+            } catch (IllegalAccessException | InvocationTargetException e) {
+                e.printStackTrace();
+            }
+        }
+        return Executors.newFixedThreadPool(ServerContext.getThreads());
+    }
+
     public void start(){
+        if(nioServer!=null){
+            nioServer.start();
+            return;
+        }
         try {
             while(true) {
                 System.out.println("等待客户端链接...");
-                Socket socket = serverSocket.accept();
+                Socket socket = serverSocket.accept().socket();
                 System.out.println("一个客户端链接了!");
                 //启动一个线程负责与该客户端交互
-                ClientHandler handler = new ClientHandler(socket);
+                ClientHandler handler = new ClientHandler(socket,threadPool);
                 threadPool.execute(handler);
             }
 
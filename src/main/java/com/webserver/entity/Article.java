@@ -4,6 +4,7 @@ import java.io.Serializable;
 
 /**
  * 文章信息
+ * 保存时使用EntityCodec编码，实现Serializable只是为了ObjFileMigration能够读取以前的obj文件
  */
 public class Article implements Serializable {
     static final long serialVersionUID = 1L;
@@ -11,6 +12,8 @@ public class Article implements Serializable {
     private String title;
     private String author;
     private String content;
+    private long id;//编号，保存后由存储分配，从1开始
+    private long createTime;//发表时间
 
     public Article(String title, String author, String content) {
         this.title = title;
@@ -42,12 +45,30 @@ public class Article implements Serializable {
         this.content = content;
     }
 
+    public long getId() {
+        return id;
+    }
+
+    public void setId(long id) {
+        this.id = id;
+    }
+
+    public long getCreateTime() {
+        return createTime;
+    }
+
+    public void setCreateTime(long createTime) {
+        this.createTime = createTime;
+    }
+
     @Override
     public String toString() {
         return "Article{" +
-                "title='" + title + '\'' +
+                "id=" + id +
+                ", title='" + title + '\'' +
                 ", author='" + author + '\'' +
                 ", content='" + content + '\'' +
+                ", createTime=" + createTime +
                 '}';
     }
 }
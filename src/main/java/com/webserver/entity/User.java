@@ -4,6 +4,7 @@ import java.io.Serializable;
 
 /**
  * 使用当前类的每一个实例表示一个用户信息
+ * 保存时使用EntityCodec编码，实现Serializable只是为了ObjFileMigration能够读取以前的obj文件
  */
 public class User implements Serializable {
     static final long serialVersionUID = 1L;
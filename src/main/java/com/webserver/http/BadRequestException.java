@@ -0,0 +1,28 @@
+package com.webserver.http;
+
+/**
+ * 错误请求异常
+ * 当HttpRequestParser发现请求内容不符合HTTP协议格式时会抛出该异常
+ */
+public class BadRequestException extends Exception{
+    private static final long serialVersionUID = 1L;
+
+    public BadRequestException() {
+    }
+
+    public BadRequestException(String message) {
+        super(message);
+    }
+
+    public BadRequestException(String message, Throwable cause) {
+        super(message, cause);
+    }
+
+    public BadRequestException(Throwable cause) {
+        super(cause);
+    }
+
+    public BadRequestException(String message, Throwable cause, boolean enableSuppression, boolean writableStackTrace) {
+        super(message, cause, enableSuppression, writableStackTrace);
+    }
+}
@@ -0,0 +1,82 @@
+package com.webserver.http;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+/**
+ * 保存在临时文件中的数据
+ * 较大的请求正文和上传的文件在接收时直接写入临时文件，不占用堆内存。
+ * 请求处理完毕后由HttpServletRequest.release删除。
+ */
+public class BodySpool {
+    private File file;
+    private OutputStream out;
+    private long length;
+
+    public BodySpool() throws IOException {
+        file = File.createTempFile("webserver-", ".tmp");
+        out = new BufferedOutputStream(new FileOutputStream(file), 8192);
+    }
+
+    public void write(byte[] data, int off, int len) throws IOException {
+        out.write(data, off, len);
+        length += len;
+    }
+
+    /**
+     * 数据写入完毕
+     */
+    public void finish() throws IOException {
+        if(out!=null){
+            out.close();
+            out = null;
+        }
+    }
+
+    /**
+     * 读取已写入的数据
+     * @return
+     */
+    public InputStream openStream() throws IOException {
+        return new BufferedInputStream(new FileInputStream(file));
+    }
+
+    /**
+     * 将数据保存到指定的文件，临时文件被移动到目标位置
+     * @param dest
+     */
+    public void moveTo(File dest) throws IOException {
+        finish();
+        Files.move(file.toPath(), dest.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * 删除临时文件
+     */
+    public void delete(){
+        try {
+            finish();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        if(file.exists()&&!file.delete()){
+            file.deleteOnExit();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getLength() {
+        return length;
+    }
+}
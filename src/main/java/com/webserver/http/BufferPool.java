@@ -0,0 +1,169 @@
+package com.webserver.http;
+
+import com.webserver.core.ServerContext;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字节数组缓冲区池
+ * 每个请求的原始数据，动态响应正文的缓冲区，复制文件时的缓冲区都从这里借出，用完后归还，
+ * 避免每个请求都分配几KB到几十KB的新数组。
+ * 数组按大小分级(512字节到64KB，每级是上一级的2倍)，借出的数组长度是不小于所需大小的那一级，
+ * 使用者需要自己记录实际使用的长度。更大的数组不缓存，每次直接创建。
+ * 每一级缓存的数组个数有上限，池满时归还的数组直接丢弃交给GC。
+ *
+ * 开启泄漏检查(server.buffer-pool.leak-detection=true)后会记录每次借出时的调用栈，
+ * 数组没有归还就被回收时输出该调用栈，重复归还或归还不是从池中借出的数组时也会输出提示。
+ */
+public class BufferPool {
+    private static final int MIN_SHIFT = 9;//最小一级512字节
+    private static final int MAX_SHIFT = 16;//最大一级64KB
+    private static final Stack[] stacks = new Stack[MAX_SHIFT - MIN_SHIFT + 1];
+
+    //泄漏检查
+    private static final boolean leakDetection = ServerContext.isBufferLeakDetection();
+    private static final ReferenceQueue<byte[]> leakQueue = new ReferenceQueue<>();
+    //借出的数组对应的记录，数组被回收后记录自动移除(数组没有重写equals，按照对象比较)
+    private static final Map<byte[],Leak> borrowed = Collections.synchronizedMap(new WeakHashMap<>());
+    //记录本身必须保持可达，数组被回收后它才能进入leakQueue
+    private static final Set<Leak> leaks = Collections.newSetFromMap(new ConcurrentHashMap<>());
+
+    static {
+        //每一级平均分配缓存的字节数
+        int maxBytes = ServerContext.getBufferPoolMaxBytes() / stacks.length;
+        for (int i = 0; i < stacks.length; i++) {
+            stacks[i] = new Stack(maxBytes >> (MIN_SHIFT + i));
+        }
+    }
+
+    /**
+     * 借出一个长度不小于size的数组，数组中可能有之前使用时留下的数据
+     * @param size 所需的长度
+     * @return
+     */
+    public static byte[] acquire(int size) {
+        int index = indexOf(size);
+        byte[] buf = null;
+        if (index != -1) {
+            buf = stacks[index].pop();
+            if (buf == null) {
+                buf = new byte[1 << (MIN_SHIFT + index)];
+            }
+        } else {
+            buf = new byte[size];
+        }
+        if (leakDetection) {
+            track(buf);
+        }
+        return buf;
+    }
+
+    /**
+     * 归还借出的数组，归还后不能再使用它
+     * @param buf 为null时忽略
+     */
+    public static void release(byte[] buf) {
+        if (buf == null) {
+            return;
+        }
+        if (leakDetection && !untrack(buf)) {
+            return;
+        }
+        int index = indexOf(buf.length);
+        if (index != -1 && buf.length == 1 << (MIN_SHIFT + index)) {
+            stacks[index].push(buf);
+        }
+    }
+
+    /**
+     * 获取能容纳size个字节的那一级
+     * @return 超出最大一级时返回-1
+     */
+    private static int indexOf(int size) {
+        if (size <= 1 << MIN_SHIFT) {
+            return 0;
+        }
+        int shift = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return shift > MAX_SHIFT ? -1 : shift - MIN_SHIFT;
+    }
+
+    private static void track(byte[] buf) {
+        reportLeaks();
+        Leak leak = new Leak(buf);
+        leaks.add(leak);
+        borrowed.put(buf, leak);
+    }
+
+    /**
+     * @return false表示该数组不是从池中借出的，或者已经归还过
+     */
+    private static boolean untrack(byte[] buf) {
+        Leak leak = borrowed.remove(buf);
+        if (leak == null) {
+            System.out.println("缓冲区池:归还了未借出或已归还的数组");
+            new Throwable("归还位置").printStackTrace();
+            return false;
+        }
+        leaks.remove(leak);
+        leak.clear();
+        return true;
+    }
+
+    /**
+     * 输出已经被回收但没有归还的数组的借出位置
+     */
+    private static void reportLeaks() {
+        Leak leak;
+        while ((leak = (Leak) leakQueue.poll()) != null) {
+            if (leaks.remove(leak)) {
+                System.out.println("缓冲区池:数组没有归还就被回收了");
+                leak.trace.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 一次借出的记录
+     */
+    private static class Leak extends WeakReference<byte[]> {
+        private final Throwable trace;
+
+        Leak(byte[] buf) {
+            super(buf, leakQueue);
+            this.trace = new Throwable("借出位置(长度" + buf.length + ")");
+        }
+    }
+
+    /**
+     * 同一级的空闲数组
+     */
+    private static class Stack {
+        private final byte[][] items;
+        private int size;
+
+        Stack(int capacity) {
+            items = new byte[capacity][];
+        }
+
+        synchronized byte[] pop() {
+            if (size == 0) {
+                return null;
+            }
+            byte[] buf = items[--size];
+            items[size] = null;
+            return buf;
+        }
+
+        synchronized void push(byte[] buf) {
+            if (size < items.length) {
+                items[size++] = buf;
+            }
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package com.webserver.http;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 解析请求头Range
+ * 例如: bytes=0-499  bytes=500-  bytes=-500  bytes=0-99,200-299
+ */
+public class ByteRanges {
+    //一个请求最多允许的区间数，防止客户端用大量重叠的区间放大响应
+    private static final int MAX_RANGES = 16;
+
+    /**
+     * 解析请求头Range
+     * @param header 请求头Range的值
+     * @param length 资源的总长度
+     * @return 每个元素为{开始位置,结束位置}(均包含在内)。
+     *         格式有误或区间过多时返回null，表示忽略Range发送完整内容;
+     *         所有区间都超出资源长度时返回空集合，表示应回复416
+     */
+    public static List<long[]> parse(String header, long length){
+        if(!header.startsWith("bytes=")){
+            return null;
+        }
+        List<long[]> ranges = new ArrayList<>();
+        String[] specs = header.substring(6).split(",");
+        if(specs.length>MAX_RANGES){
+            return null;
+        }
+        for(String spec : specs){
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if(dash==-1){
+                return null;
+            }
+            String first = spec.substring(0,dash).trim();
+            String last = spec.substring(dash+1).trim();
+            if(!first.matches("[0-9]{0,18}")||!last.matches("[0-9]{0,18}")
+                    ||(first.isEmpty()&&last.isEmpty())){
+                return null;
+            }
+            long start;
+            long end;
+            if(first.isEmpty()){//bytes=-500 表示最后500个字节
+                long suffix = Long.parseLong(last);
+                if(suffix==0){
+                    continue;
+                }
+                start = Math.max(0,length-suffix);
+                end = length-1;
+            }else{
+                start = Long.parseLong(first);
+                end = last.isEmpty()?length-1:Math.min(Long.parseLong(last),length-1);
+                if(!last.isEmpty()&&Long.parseLong(last)<start){
+                    return null;
+                }
+            }
+            if(start<length){//超出资源长度的区间忽略
+                ranges.add(new long[]{start,end});
+            }
+        }
+        return ranges;
+    }
+}
@@ -0,0 +1,99 @@
+package com.webserver.http;
+
+import com.webserver.core.ServerContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * 响应正文的压缩策略
+ * 只有客户端通过Accept-Encoding声明支持gzip，正文类型在允许压缩的列表中，
+ * 并且正文长度不小于配置的下限时才进行压缩。
+ * 允许压缩的类型通过资源后缀配置，再根据web.properties中的对应关系转换为MIME类型。
+ */
+public class Compression {
+    private static boolean enabled;
+    private static int minSize;//小于该长度的正文不压缩
+    private static Set<String> mimeTypes = new HashSet<>();//允许压缩的MIME类型
+
+    static {
+        enabled = Boolean.parseBoolean(ServerContext.getString("compress.enabled","true"));
+        minSize = ServerContext.getInt("compress.min-size",1024);
+        String extensions = ServerContext.getString(
+                "compress.extensions","html,htm,css,js,json,txt,xml,svg,csv"
+        );
+        for(String ext : extensions.split(",")){
+            String mime = HttpContext.getMimeType(ext.trim());
+            if(mime!=null){
+                mimeTypes.add(mime);
+            }
+        }
+    }
+
+    /**
+     * 判断客户端是否支持gzip
+     * @param acceptEncoding 请求头Accept-Encoding的值 例如:gzip, deflate, br
+     * @return
+     */
+    public static boolean acceptsGzip(String acceptEncoding){
+        if(!enabled||acceptEncoding==null){
+            return false;
+        }
+        for(String coding : acceptEncoding.split(",")){
+            String[] data = coding.trim().split(";");
+            String name = data[0].trim();
+            if(name.equalsIgnoreCase("gzip")||name.equals("*")){
+                //gzip;q=0表示明确不接受
+                return !(data.length>1&&data[1].trim().matches("q=0(\\.0*)?"));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 判断给定类型和长度的正文是否值得压缩
+     * @param contentType 例如:text/html;charset=utf-8
+     * @param length 正文长度
+     * @return
+     */
+    public static boolean isCompressible(String contentType,long length){
+        if(!enabled||contentType==null||length<minSize){
+            return false;
+        }
+        int index = contentType.indexOf(';');
+        String mime = index==-1?contentType:contentType.substring(0,index);
+        return mimeTypes.contains(mime.trim().toLowerCase());
+    }
+
+    /**
+     * 将数据以gzip格式压缩
+     * @param data
+     * @return
+     */
+    public static byte[] gzip(byte[] data){
+        return gzip(data,0,data.length);
+    }
+
+    /**
+     * 将数组中的一部分数据以gzip格式压缩
+     * @param data
+     * @param off 开始位置
+     * @param len 数据长度
+     * @return
+     */
+    public static byte[] gzip(byte[] data,int off,int len){
+        ByteArrayOutputStream out = new ByteArrayOutputStream(Math.max(64,len/3));
+        try (
+                GZIPOutputStream gzip = new GZIPOutputStream(out);
+        ) {
+            gzip.write(data,off,len);
+        } catch (IOException e) {
+            //写入内存不会出现异常
+            throw new IllegalStateException(e);
+        }
+        return out.toByteArray();
+    }
+}
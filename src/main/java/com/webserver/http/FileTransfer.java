@@ -0,0 +1,19 @@
+package com.webserver.http;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * 可以直接发送文件内容的响应输出
+ * 响应的输出流若实现了该接口，发送文件时不再由HttpServletResponse读取文件，
+ * 而是交给输出自行处理(例如由nio模式的I/O循环通过FileChannel.transferTo发送)
+ */
+public interface FileTransfer {
+    /**
+     * 发送文件中的一段内容
+     * @param file 要发送的文件
+     * @param position 从文件的哪个位置开始
+     * @param count 发送的字节数
+     */
+    void transferFile(File file, long position, long count) throws IOException;
+}
@@ -0,0 +1,16 @@
+package com.webserver.http;
+
+/**
+ * 请求头过大异常
+ * 当请求行加消息头的长度或者消息头的数量超过上限时HttpRequestParser会抛出该异常，应回复431
+ */
+public class HeaderTooLargeException extends BadRequestException{
+    private static final long serialVersionUID = 1L;
+
+    public HeaderTooLargeException() {
+    }
+
+    public HeaderTooLargeException(String message) {
+        super(message);
+    }
+}
@@ -1,7 +1,13 @@
 package com.webserver.http;
 
 import java.io.IOException;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Properties;
 
@@ -74,6 +80,35 @@ public class HttpContext {
         }
     }
 
+    /**
+     * HTTP协议规定的日期格式 例如:Sun, 06 Nov 1994 08:49:37 GMT
+     */
+    private static final DateTimeFormatter HTTP_DATE = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US)
+            .withZone(ZoneOffset.UTC);
+
+    /**
+     * 将时间转换为HTTP协议规定的日期格式
+     * @param millis
+     * @return
+     */
+    public static String formatDate(long millis){
+        return HTTP_DATE.format(Instant.ofEpochMilli(millis));
+    }
+
+    /**
+     * 解析HTTP协议规定格式的日期
+     * @param date
+     * @return 对应的毫秒值，格式有误时返回-1
+     */
+    public static long parseDate(String date){
+        try {
+            return ZonedDateTime.parse(date, HTTP_DATE).toInstant().toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return -1;
+        }
+    }
+
     /**
      * 根据资源后缀名获取对应的MIME类型
      * @param ext
@@ -83,6 +118,26 @@ public class HttpContext {
         return mimeMapping.get(ext);
     }
 
+    /**
+     * 转义HTML中的特殊字符，用户输入的内容在页面中原样显示
+     * @param s
+     * @return
+     */
+    public static String escapeHtml(String s){
+        StringBuilder builder = new StringBuilder(s.length());
+        for(int i=0;i<s.length();i++){
+            char c = s.charAt(i);
+            switch(c){
+                case '<': builder.append("&lt;"); break;
+                case '>': builder.append("&gt;"); break;
+                case '&': builder.append("&amp;"); break;
+                case '"': builder.append("&quot;"); break;
+                default: builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
     public static void main(String[] args) {
         System.out.println(getMimeType("png"));
     }
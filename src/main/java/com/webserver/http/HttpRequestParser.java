@@ -0,0 +1,525 @@
+package com.webserver.http;
+
+import static com.webserver.http.HttpContext.CR;
+import static com.webserver.http.HttpContext.LF;
+
+import com.webserver.core.ServerContext;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * 请求解析器
+ * 每个链接持有一个解析器，客户端发来的数据被批量读入解析器内部可重复使用的字节数组中，
+ * 解析过程只在数组上查找回车换行，冒号等分隔符并记录请求行和消息头各部分的位置，
+ * 不会为它们创建字符串，直到真正用到时才由HttpServletRequest生成。
+ * 解析可以随时中断和继续:数据不完整时parse返回false，再次读取到数据后从上次的位置继续，
+ * 因此既可以用于阻塞的socket输入流，也可以用于nio模式下一次只读到部分数据的情况。
+ * 正文支持Content-Length和Transfer-Encoding: chunked两种格式，长度超过配置的上限时回复413。
+ * 较小的正文与请求头保存在一起，超过内存上限的正文在接收时直接写入临时文件，
+ * 不会按照客户端声明的长度分配内存。
+ * 请求对象处理完毕(release)后交还给解析器，解析下一个请求时重复使用，
+ * 请求的原始字节复制到从BufferPool借出的数组中。
+ */
+public class HttpRequestParser {
+    //请求行加消息头允许的最大长度
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    //允许的消息头数量
+    private static final int MAX_HEADERS = 100;
+
+    //解析状态
+    private static final int REQUEST_LINE = 0;//正在解析请求行
+    private static final int HEADERS = 1;//正在解析消息头
+    private static final int CONTENT = 2;//正在等待消息正文
+    private static final int DONE = 3;//已得到一个完整的请求
+    private static final int CHUNK_SIZE = 4;//正在解析分块的长度行
+    private static final int CHUNK_DATA = 5;//正在接收分块的数据
+    private static final int CHUNK_END = 6;//正在等待分块数据之后的CRLF
+    private static final int TRAILER = 7;//正在解析结束块之后的消息头
+
+    private byte[] buf = new byte[4096];
+    private int start;//当前请求在buf中的起始位置
+    private int limit;//buf中有效数据的末尾
+    private int pos;//下一个要查找的位置
+    private int lineStart;//当前行的起始位置
+    private int state = REQUEST_LINE;
+
+    /*
+        以下位置均为相对于start的偏移量
+        line:方法结束位置，uri开始位置，uri结束位置，协议开始位置，协议结束位置
+        headers:每个消息头依次为名字开始，名字结束，值开始，值结束
+     */
+    private int[] line = new int[5];
+    private int[] headers = new int[4 * 16];
+    private int headerCount;
+    private int contentStart;//正文开始位置(绝对位置)
+    private int contentLength;
+    private boolean hasContentLength;//是否有Content-Length消息头
+    private boolean chunked;//正文是否为分块传输
+    private int chunkRemaining;//当前分块还未接收的字节数
+    private int bodyLength;//分块传输时已接收的正文长度
+    private ByteArrayOutputStream chunkData;//分块传输时已接收的正文(内存中)
+    private BodySpool spool;//保存在临时文件中的正文
+
+    //已经处理完毕可以重复使用的请求对象，nio模式下由处理请求的线程交还，因此使用原子引用
+    private final AtomicReference<HttpServletRequest> recycled = new AtomicReference<>();
+
+    private int maxBodySize = ServerContext.getMaxBodySize();//正文的最大长度
+    private int memoryLimit = ServerContext.getBodyMemoryLimit();//超过该长度的正文写入临时文件
+
+    /**
+     * 从输入流中读取一批数据到缓冲区
+     * @return 实际读取的字节数，-1表示流已经读取到末尾
+     */
+    public int read(InputStream in) throws IOException {
+        ensureSpace();
+        int len = in.read(buf, limit, buf.length - limit);
+        if (len > 0) {
+            limit += len;
+        }
+        return len;
+    }
+
+    /**
+     * 从通道中读取一批数据到缓冲区，可以是非阻塞通道
+     * @return 实际读取的字节数，-1表示对方已断开
+     */
+    public int read(ReadableByteChannel channel) throws IOException {
+        ensureSpace();
+        int len = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit));
+        if (len > 0) {
+            limit += len;
+        }
+        return len;
+    }
+
+    /**
+     * 以阻塞的方式从输入流中读取一个完整的请求
+     * @param in
+     * @return
+     * @throws EmptyRequestException 请求还未到达客户端就断开了
+     */
+    public HttpServletRequest readRequest(InputStream in)
+            throws IOException, EmptyRequestException, BadRequestException {
+        while (!parse()) {
+            if (read(in) == -1) {
+                throw new EmptyRequestException();
+            }
+        }
+        return nextRequest();
+    }
+
+    /**
+     * 继续解析缓冲区中已有的数据
+     * @return true表示已得到一个完整的请求，可以通过nextRequest获取
+     */
+    public boolean parse() throws IOException, BadRequestException {
+        while (true) {
+            if (state == DONE) {
+                return true;
+            }
+            if (state == CONTENT) {
+                if (!readContent()) {
+                    return false;
+                }
+                state = DONE;
+                continue;
+            }
+            if (state >= CHUNK_SIZE) {
+                if (!readChunks()) {
+                    return false;
+                }
+                state = DONE;
+                continue;
+            }
+            //在缓冲区中批量查找换行符
+            int lf = indexOf(LF, pos, limit);
+            if (lf == -1) {
+                pos = limit;
+                if (limit - start > MAX_HEAD_SIZE) {
+                    throw new HeaderTooLargeException("请求头过大");
+                }
+                return false;
+            }
+            int lineEnd = lf > lineStart && buf[lf - 1] == CR ? lf - 1 : lf;
+            pos = lf + 1;
+            //每一行都检查，否则不断发送短消息头的客户端可以使缓冲区无限增长
+            if (pos - start > MAX_HEAD_SIZE) {
+                throw new HeaderTooLargeException("请求头过大");
+            }
+            if (state == REQUEST_LINE) {
+                if (lineEnd == lineStart) {//请求行之前的空行忽略
+                    start = pos;
+                } else {
+                    parseRequestLine(lineEnd);
+                    state = HEADERS;
+                }
+            } else if (lineEnd == lineStart) {//单独的回车+换行说明消息头结束
+                contentStart = pos;
+                startContent();
+            } else {
+                parseHeader(lineEnd);
+            }
+            lineStart = pos;
+        }
+    }
+
+    /**
+     * 消息头解析完毕，根据正文的格式准备接收正文
+     */
+    private void startContent() throws IOException, BadRequestException {
+        //两者同时出现时代理服务器和本服务器可能对请求在哪里结束有不同的理解(请求走私)，直接拒绝
+        if (chunked && hasContentLength) {
+            throw new BadRequestException("Transfer-Encoding与Content-Length不能同时出现");
+        }
+        if (chunked) {
+            contentLength = 0;
+            chunkData = new ByteArrayOutputStream();
+            state = CHUNK_SIZE;
+            return;
+        }
+        //声明的长度过大时不必等待正文到达
+        if (contentLength > maxBodySize) {
+            throw new PayloadTooLargeException("请求正文过大:" + contentLength);
+        }
+        if (contentLength > memoryLimit) {
+            spool = new BodySpool();
+        }
+        state = CONTENT;
+    }
+
+    /**
+     * 接收Content-Length指定长度的正文
+     * @return true表示正文已全部接收
+     */
+    private boolean readContent() throws IOException {
+        if (spool == null) {//正文与请求头一起保留在缓冲区中
+            return limit - contentStart >= contentLength;
+        }
+        //已到达的正文写入临时文件后从缓冲区中移除
+        int len = (int) Math.min(contentLength - spool.getLength(), limit - contentStart);
+        if (len > 0) {
+            spool.write(buf, contentStart, len);
+            remove(contentStart, len);
+        }
+        return spool.getLength() == contentLength;
+    }
+
+    /**
+     * 接收分块传输的正文
+     * 格式: 十六进制的长度 CRLF 数据 CRLF ... 0 CRLF (消息头 CRLF)... CRLF
+     * 已处理的数据都从缓冲区中移除，因此每次都从contentStart开始处理
+     * @return true表示正文已全部接收
+     */
+    private boolean readChunks() throws IOException, BadRequestException {
+        while (true) {
+            if (state == CHUNK_DATA) {
+                int len = Math.min(chunkRemaining, limit - contentStart);
+                if (len == 0) {
+                    return false;
+                }
+                appendChunk(len);
+                chunkRemaining -= len;
+                if (chunkRemaining == 0) {
+                    state = CHUNK_END;
+                }
+                continue;
+            }
+            int lf = indexOf(LF, contentStart, limit);
+            if (lf == -1) {
+                if (limit - contentStart > 8 * 1024) {
+                    throw new BadRequestException("分块格式错误");
+                }
+                return false;
+            }
+            int lineEnd = lf > contentStart && buf[lf - 1] == CR ? lf - 1 : lf;
+            if (state == CHUNK_SIZE) {
+                chunkRemaining = parseChunkSize(contentStart, lineEnd);
+                state = chunkRemaining == 0 ? TRAILER : CHUNK_DATA;
+            } else if (state == CHUNK_END) {
+                if (lineEnd != contentStart) {
+                    throw new BadRequestException("分块格式错误");
+                }
+                state = CHUNK_SIZE;
+            } else if (lineEnd == contentStart) {//结束块之后的空行表示正文结束
+                remove(contentStart, lf + 1 - contentStart);
+                return true;
+            }
+            remove(contentStart, lf + 1 - contentStart);
+        }
+    }
+
+    /**
+     * 将缓冲区中contentStart开始的len个字节作为正文保存
+     */
+    private void appendChunk(int len) throws IOException, BadRequestException {
+        bodyLength += len;
+        if (bodyLength > maxBodySize || bodyLength < 0) {
+            throw new PayloadTooLargeException("请求正文过大");
+        }
+        if (spool == null && bodyLength > memoryLimit) {//超过内存上限，改为写入临时文件
+            spool = new BodySpool();
+            spool.write(chunkData.toByteArray(), 0, chunkData.size());
+            chunkData = null;
+        }
+        if (spool != null) {
+            spool.write(buf, contentStart, len);
+        } else {
+            chunkData.write(buf, contentStart, len);
+        }
+        remove(contentStart, len);
+    }
+
+    /**
+     * 解析分块的长度 例如:1a3f 或 1a3f;name=value
+     */
+    private int parseChunkSize(int from, int to) throws BadRequestException {
+        int semicolon = indexOf((byte) ';', from, to);
+        if (semicolon != -1) {
+            to = semicolon;
+        }
+        while (to > from && (buf[to - 1] == ' ' || buf[to - 1] == '\t')) {
+            to--;
+        }
+        if (from == to || to - from > 7) {
+            throw new BadRequestException("分块长度格式错误");
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int d = Character.digit(buf[i], 16);
+            if (d == -1) {
+                throw new BadRequestException("分块长度格式错误");
+            }
+            value = value * 16 + d;
+        }
+        return value;
+    }
+
+    /**
+     * 从缓冲区中移除一段已处理的数据，之后的数据向前移动
+     */
+    private void remove(int from, int len) {
+        System.arraycopy(buf, from + len, buf, from, limit - from - len);
+        limit -= len;
+        pos = Math.min(pos, limit);
+    }
+
+    /**
+     * 获取已解析完毕的请求，并准备解析下一个请求
+     * 缓冲区中该请求之后的数据(客户端连续发送的后续请求)会保留下来
+     * @return
+     */
+    public HttpServletRequest nextRequest() throws IOException {
+        int end;
+        byte[] data;
+        int length;
+        //请求对象持有自己的一份数据，解析器的缓冲区可以继续复用
+        if (spool != null) {//正文在临时文件中，缓冲区中只有请求头
+            spool.finish();
+            end = contentStart;
+            length = (int) spool.getLength();
+            data = copy(end, 0);
+        } else if (chunked) {//请求头之后接上已接收的正文
+            end = contentStart;
+            length = chunkData.size();
+            data = copy(end, length);
+            System.arraycopy(chunkData.toByteArray(), 0, data, end - start, length);
+        } else {
+            end = contentStart + contentLength;
+            length = contentLength;
+            data = copy(end, 0);
+        }
+        HttpServletRequest request = recycled.getAndSet(null);
+        if (request == null) {
+            request = new HttpServletRequest(this);
+        }
+        request.init(data, line, headers, headerCount, contentStart - start, length, spool);
+        if (end == limit) {//没有剩余数据，直接从头开始使用缓冲区
+            end = limit = 0;
+            if (buf.length > MAX_HEAD_SIZE) {//接收大正文时扩容的缓冲区不再保留
+                buf = new byte[4096];
+            }
+        }
+        start = pos = lineStart = end;
+        state = REQUEST_LINE;
+        headerCount = 0;
+        contentLength = 0;
+        hasContentLength = false;
+        chunked = false;
+        bodyLength = 0;
+        chunkData = null;
+        spool = null;
+        return request;
+    }
+
+    /**
+     * 将缓冲区中从当前请求开始到end的数据复制到从缓冲区池借出的数组中
+     * @param extra 额外预留的长度
+     */
+    private byte[] copy(int end, int extra) {
+        byte[] data = BufferPool.acquire(end - start + extra);
+        System.arraycopy(buf, start, data, 0, end - start);
+        return data;
+    }
+
+    /**
+     * 交还处理完毕的请求对象，由HttpServletRequest.release调用
+     */
+    void recycle(HttpServletRequest request) {
+        recycled.set(request);
+    }
+
+    /**
+     * 链接断开时删除尚未接收完的正文的临时文件
+     */
+    public void close() {
+        if (spool != null) {
+            spool.delete();
+            spool = null;
+        }
+    }
+
+    /**
+     * 缓冲区中是否还有尚未解析完的数据
+     * @return
+     */
+    public boolean hasRemaining() {
+        return limit > start;
+    }
+
+    /**
+     * 解析请求行 例如:GET /myweb/index.html HTTP/1.1
+     */
+    private void parseRequestLine(int lineEnd) throws BadRequestException {
+        int sp1 = indexOf((byte) ' ', lineStart, lineEnd);
+        int sp2 = sp1 == -1 ? -1 : indexOf((byte) ' ', sp1 + 1, lineEnd);
+        if (sp1 <= lineStart || sp2 == -1 || sp2 == sp1 + 1) {
+            throw new BadRequestException("请求行格式错误");
+        }
+        line[0] = sp1 - start;
+        line[1] = sp1 + 1 - start;
+        line[2] = sp2 - start;
+        line[3] = sp2 + 1 - start;
+        line[4] = lineEnd - start;
+    }
+
+    /**
+     * 解析一个消息头 例如:Content-Length: 20
+     */
+    private void parseHeader(int lineEnd) throws BadRequestException {
+        int colon = indexOf((byte) ':', lineStart, lineEnd);
+        if (colon <= lineStart) {
+            throw new BadRequestException("消息头格式错误");
+        }
+        int valueStart = colon + 1;
+        while (valueStart < lineEnd && (buf[valueStart] == ' ' || buf[valueStart] == '\t')) {
+            valueStart++;
+        }
+        int valueEnd = lineEnd;
+        while (valueEnd > valueStart && (buf[valueEnd - 1] == ' ' || buf[valueEnd - 1] == '\t')) {
+            valueEnd--;
+        }
+        if (headerCount == MAX_HEADERS) {
+            throw new HeaderTooLargeException("消息头过多");
+        }
+        if (headerCount * 4 == headers.length) {
+            headers = Arrays.copyOf(headers, headers.length * 2);
+        }
+        int i = headerCount++ * 4;
+        headers[i] = lineStart - start;
+        headers[i + 1] = colon - start;
+        headers[i + 2] = valueStart - start;
+        headers[i + 3] = valueEnd - start;
+        //正文长度决定了请求在哪里结束，因此需要在解析时就获取
+        if (equalsIgnoreCase(buf, lineStart, colon, "Content-Length")) {
+            int length = parseLength(valueStart, valueEnd);
+            if (hasContentLength && length != contentLength) {
+                throw new BadRequestException("Content-Length不一致");
+            }
+            contentLength = length;
+            hasContentLength = true;
+        } else if (equalsIgnoreCase(buf, lineStart, colon, "Transfer-Encoding")) {
+            if (!equalsIgnoreCase(buf, valueStart, valueEnd, "chunked")) {
+                throw new BadRequestException("不支持的Transfer-Encoding");
+            }
+            chunked = true;
+        }
+    }
+
+    private int parseLength(int from, int to) throws BadRequestException {
+        if (from == to || to - from > 9) {
+            throw new BadRequestException("Content-Length格式错误");
+        }
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            int d = buf[i] - '0';
+            if (d < 0 || d > 9) {
+                throw new BadRequestException("Content-Length格式错误");
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    /**
+     * 确保缓冲区还有空间可以读取数据
+     */
+    private void ensureSpace() {
+        int required = state == CONTENT && spool == null ? contentStart - start + contentLength : 0;
+        if (limit < buf.length && start + required <= buf.length) {
+            return;
+        }
+        if (start > 0) {//将当前请求移动到缓冲区开头
+            int offset = start;
+            System.arraycopy(buf, start, buf, 0, limit - start);
+            start = 0;
+            limit -= offset;
+            pos -= offset;
+            lineStart -= offset;
+            contentStart -= offset;
+        }
+        if (limit == buf.length || required > buf.length) {
+            buf = Arrays.copyOf(buf, Math.max(buf.length * 2, required));
+        }
+    }
+
+    private int indexOf(byte b, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (buf[i] == b) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private int indexOf(char c, int from, int to) {
+        return indexOf((byte) c, from, to);
+    }
+
+    /**
+     * 比较data中[from,to)范围的字节与给定的名字是否相同(忽略大小写)
+     */
+    static boolean equalsIgnoreCase(byte[] data, int from, int to, String name) {
+        if (to - from != name.length()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            int a = data[from + i];
+            int b = name.charAt(i);
+            if (a == b) {
+                continue;
+            }
+            //只有字母才允许大小写不同
+            int lower = a | 0x20;
+            if (lower != (b | 0x20) || lower < 'a' || lower > 'z') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -1,14 +1,17 @@
 package com.webserver.http;
 
-import static com.webserver.http.HttpContext.CR;
-import static com.webserver.http.HttpContext.LF;
+import com.webserver.core.ServerContext;
+
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
-import java.net.Socket;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -16,8 +19,25 @@ import java.util.Map;
  * 该类的每一个实例用于表示HTTP协议规定的客户端发送过来的一个请求内容。
  * 每个请求由三部分构成:
  * 请求行，消息头，消息正文
+ * 请求由HttpRequestParser解析，当前对象只保存请求的原始字节以及各部分在其中的位置，
+ * 请求行，消息头等信息在第一次获取时才转换为字符串。
+ * 参数同样在第一次获取时才解析，并且只记录每个参数的名字和值在原始字节中的位置，
+ * 获取参数值时才对该值单独解码，请求静态资源时不会做任何参数相关的工作。
+ * 原始字节保存在从BufferPool借出的数组中，请求对象本身也由创建它的解析器回收:
+ * 调用release后数组归还给缓冲区池，当前对象交还给解析器，用于该链接上的下一个请求，
+ * 因此release之后不能再使用当前对象。
  */
 public class HttpServletRequest {
+    private HttpRequestParser parser;//创建当前对象的解析器，release后交还给它重复使用
+    private byte[] data;//请求的原始字节(从BufferPool借出，长度可能大于实际数据)
+    private int[] line = new int[5];//请求行各部分的位置
+    private int[] headerOffsets = new int[4 * 16];//每个消息头名字和值的位置
+    private int headerCount;
+    private int contentStart;//正文在data中的开始位置
+    private int contentLength;
+    private BodySpool spool;//正文较大时保存在临时文件中，否则正文在data中
+    private List<Part> parts;//multipart/form-data格式正文的每一部分
+
     //请求行的相关信息
     private String method;//请求方式
     private String uri;//抽象路径
@@ -25,209 +45,544 @@ public class HttpServletRequest {
 
     private String requestURI;//存uri中"?"左侧的请求部分
     private String queryString;//存uri中"?"右侧的参数部分
-    //存客户端提交上来的每一组参数
-    private Map<String,String> parameters = new HashMap<>();
-
-    //消息头相关信息
-    private Map<String,String> headers = new HashMap<>();
+    private int queryIndex = -2;//uri中"?"在data中的位置，-1表示没有参数，-2表示尚未查找
+    /*
+        客户端提交上来的每一组参数在data中的位置，每组参数占4个元素:
+        名字的开始位置,名字的结束位置,值的开始位置,值的结束位置(没有"="时值的位置均为-1)
+     */
+    private int[] parameterOffsets;
+    private int parameterCount;
+    private boolean parametersParsed;
+    //匹配到的路由路径 例如:/myweb/article/{id}，用于获取路径变量
+    private String pathPattern;
+    private Map<String,String> pathVariables;
 
-    private Socket socket;
     /**
-     * 实例化请求对象的过程也是解析的过程
+     * 由HttpRequestParser创建
      */
-    public HttpServletRequest(Socket socket) throws IOException, EmptyRequestException {
-        this.socket = socket;
-        //1.1解析请求行
-        parseRequestLine();
-        //1.2解析消息头
-        parseHeaders();
-        //1.3解析消息正文
-        parseContent();
-
+    HttpServletRequest(HttpRequestParser parser) {
+        this.parser = parser;
     }
 
     /**
-     *  解析请求行
+     * 由HttpRequestParser在解析出一个完整请求后调用，将当前对象设置为该请求
+     * @param data 请求的原始字节，请求对象负责归还
+     * @param line 请求行各部分的位置(复制到当前对象中)
+     * @param headerOffsets 消息头的位置(复制到当前对象中)
      */
-    private void parseRequestLine() throws IOException, EmptyRequestException {
-        String line = readLine();
-        //如果请求行是一个空字符串则说明本次是空请求
-        if(line.isEmpty()){
-            //对外抛出空请求异常
-            throw new EmptyRequestException();
+    void init(byte[] data, int[] line, int[] headerOffsets, int headerCount,
+              int contentStart, int contentLength, BodySpool spool) {
+        this.data = data;
+        System.arraycopy(line, 0, this.line, 0, this.line.length);
+        if(this.headerOffsets.length<headerCount*4){
+            this.headerOffsets = new int[headerOffsets.length];
         }
-        System.out.println(line);
-        //将请求行内容拆分出来并分别赋值给三个变量
-        String[] data = line.split("\\s");
-        method = data[0];
-        uri = data[1];
-        protocol = data[2];
-
-        parseUri();//进一步解析uri
-
-        //测试路径:http://localhost:8088/myweb/index.html
-        System.out.println("method:"+method);//method:GET
-        System.out.println("uri:"+uri);//uri:/myweb/index.html
-        System.out.println("protocol:"+protocol);//protocol:HTTP/1.1
+        System.arraycopy(headerOffsets, 0, this.headerOffsets, 0, headerCount*4);
+        this.headerCount = headerCount;
+        this.contentStart = contentStart;
+        this.contentLength = contentLength;
+        this.spool = spool;
+        //清除上一个请求留下的信息
+        parts = null;
+        method = null;
+        uri = null;
+        protocol = null;
+        requestURI = null;
+        queryString = null;
+        queryIndex = -2;
+        parameterCount = 0;
+        parametersParsed = false;
+        pathPattern = null;
+        pathVariables = null;
     }
 
     /**
-     * 进一步解析uri
+     * 查找uri中"?"的位置
+     * 例如:
+     * 不含有参数的:/myweb/reg.html
+     * 含有参数的:/myweb/reg?username=fanchuanqi&password=123456&nickname=chuanqi&age=22
+     * @return 不含有参数时返回-1
      */
-    private void parseUri(){
-        /*
-            uri是有两种情况的，1:不含有参数的 2:含有参数的
-            例如:
-            不含有参数的:/myweb/reg.html
-            含有参数的:/myweb/reg?username=fanchuanqi&password=123456&nickname=chuanqi&age=22
-
-            处理方式:
-            1:若不含有参数，则直接将uri的值赋值给requestURI
-            2:若含有参数
-              2.1:先将uri按照"?"拆分为请求部分和参数部分
-                  将请求部分赋值给requestURI
-                  将参数部分赋值给queryString
-              2.2:再将参数部分按照"&"拆分出每一组参数
-                  每组参数再按照"="拆分为参数名和参数值
-                  并将参数名作为key，参数值作为value保存到parameters这个Map中
-
-              允许页面输入框空着，这种情况该参数的值为null存入parameters即可
-         */
-
-//        [/myweb/reg, username=fanchuanqi&password=123456&nickname=chuanqi&age=22]
-        String[] data = uri.split("\\?");
-        requestURI = data[0];
-        if(data.length>1){
-            //username=fanchuanqi&password=&nickname=chuanqi&age=22
-            queryString = data[1];
-            //[username=fanchuanqi, password=, nickname=chuanqi, age=22]
-            parseParameters(queryString);
+    private int queryIndex(){
+        if(queryIndex==-2){
+            queryIndex = indexOf((byte)'?',line[1],line[2]);
         }
-
-
-        System.out.println("requestURI:"+requestURI);
-        System.out.println("queryString:"+queryString);
-        System.out.println("parameters:"+parameters);
+        return queryIndex;
     }
 
     /**
-     * 解析参数
-     * @param line 格式应当为:name1=value1&name2=value2&...
+     * 解析参数，只记录每组参数的位置，不创建字符串
+     * 参数来自uri中"?"右侧的部分以及表单提交的正文
      */
-    private void parseParameters(String line){
-        //先进行转码
-        try {
-            line = URLDecoder.decode(line,"UTF-8");
-        } catch (UnsupportedEncodingException e) {
-            e.printStackTrace();
+    private void parseParameters(){
+        parametersParsed = true;
+        if(parameterOffsets==null){
+            parameterOffsets = new int[16];
         }
-        String[] data = line.split("&");
-        for(String para : data){
-            //[password]
-            String[] paras = para.split("=");
-            parameters.put(paras[0],paras.length>1?paras[1]:null);
+        int query = queryIndex();
+        if(query!=-1){
+            parseParameters(query+1,line[2]);
         }
+        //解析消息正文
+        parseContent();
     }
 
     /**
-     * 解析消息头
+     * 解析data中的一段参数
+     * @param from 格式应当为:name1=value1&name2=value2&...
+     * @param to
      */
-    private void parseHeaders() throws IOException {
-        while(true) {
-            String line = readLine();
-            if(line.isEmpty()){//若读取的字符串为空串，说明单独读取了回车+换行
-                break;
+    private void parseParameters(int from,int to){
+        int pos = from;
+        while(pos<to){
+            int end = indexOf((byte)'&',pos,to);
+            if(end==-1){
+                end = to;
+            }
+            if(end>pos){//忽略连续的&
+                int eq = indexOf((byte)'=',pos,end);
+                if(parameterCount*4==parameterOffsets.length){
+                    parameterOffsets = Arrays.copyOf(parameterOffsets,parameterOffsets.length*2);
+                }
+                int i = parameterCount*4;
+                parameterOffsets[i] = pos;
+                parameterOffsets[i+1] = eq==-1?end:eq;
+                parameterOffsets[i+2] = eq==-1?-1:eq+1;
+                parameterOffsets[i+3] = eq==-1?-1:end;
+                parameterCount++;
             }
-            System.out.println("消息头:" + line);
-            //将消息头的名字和值以key，value形式存入headers这个Map中
-            String[] data = line.split(":\\s");
-            headers.put(data[0],data[1]);
+            pos = end+1;
         }
-        System.out.println("headers:"+headers);
     }
 
     /**
      * 解析消息正文
      */
-    private void parseContent() throws IOException {
-        System.out.println("开始解析消息正文...");
+    private void parseContent() {
         //通过判断请求中的消息头是否包含Content-Length来判定是否有正文
-        if(headers.containsKey("Content-Length")){
-            int contentLength = Integer.parseInt(headers.get("Content-Length"));
-            System.out.println("正文长度:"+contentLength);
-            //基于消息头告知的长度来创建一个字节数组，用于保存正文内容
-            byte[] contentData = new byte[contentLength];
-            //读取正文所有的字节存入contentData中
-            InputStream in = socket.getInputStream();
-            in.read(contentData);
+        if(contentLength>0){
             //获取消息头Content-Type
-            String contentType = headers.get("Content-Type");
+            String contentType = getHeader("Content-Type");
             //根据Content-Type的值判定正文类型并做对应的解析
-            if("application/x-www-form-urlencoded".equals(contentType)){
-                String line = new String(contentData, StandardCharsets.ISO_8859_1);
-                System.out.println("正文内容:"+line);
-                parseParameters(line);
+            if(contentType!=null&&contentType.startsWith("application/x-www-form-urlencoded")){
+                if(spool!=null&&!loadSpool()){
+                    return;
+                }
+                parseParameters(contentStart,contentStart+contentLength);
             }
+        }
+    }
 
+    /**
+     * 表单正文较大时被保存在临时文件中，解析参数前读取到data中请求头之后
+     * @return 读取失败时返回false
+     */
+    private boolean loadSpool(){
+        try (
+                InputStream in = spool.openStream();
+        ) {
+            int end = contentStart + contentLength;
+            byte[] newData = BufferPool.acquire(end);
+            System.arraycopy(data, 0, newData, 0, contentStart);
+            int off = contentStart;
+            int len;
+            while(off<end&&(len = in.read(newData,off,end-off))!=-1){
+                off += len;
+            }
+            BufferPool.release(data);
+            data = newData;
+            spool.delete();
+            spool = null;
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return false;
+        }
+    }
 
+    private int indexOf(byte b,int from,int to){
+        for(int i=from;i<to;i++){
+            if(data[i]==b){
+                return i;
+            }
         }
+        return -1;
+    }
 
+    /**
+     * 对data中的一段内容进行URL解码("+"表示空格，%XX表示一个字节)，按照UTF-8转换为字符串
+     * 格式有误的%XX保持原样
+     */
+    private String decode(int from,int to){
+        if(!isEncoded(from,to)){
+            return new String(data,from,to-from,StandardCharsets.UTF_8);
+        }
+        byte[] buf = new byte[to-from];
+        int len = 0;
+        for(int i=from;i<to;i++){
+            byte b = data[i];
+            if(b=='+'){
+                buf[len++] = ' ';
+            }else if(b=='%'&&i+2<to&&hex(data[i+1])!=-1&&hex(data[i+2])!=-1){
+                buf[len++] = (byte)(hex(data[i+1])<<4|hex(data[i+2]));
+                i += 2;
+            }else{
+                buf[len++] = b;
+            }
+        }
+        return new String(buf,0,len,StandardCharsets.UTF_8);
+    }
 
+    private boolean isEncoded(int from,int to){
+        for(int i=from;i<to;i++){
+            if(data[i]=='%'||data[i]=='+'){
+                return true;
+            }
+        }
+        return false;
     }
 
+    private static int hex(byte b){
+        if(b>='0'&&b<='9'){
+            return b-'0';
+        }
+        if(b>='a'&&b<='f'){
+            return b-'a'+10;
+        }
+        if(b>='A'&&b<='F'){
+            return b-'A'+10;
+        }
+        return -1;
+    }
 
-    private String readLine() throws IOException {
-        InputStream in = socket.getInputStream();
-        StringBuilder builder = new StringBuilder();
-        int d;
-        char pre='a',cur='a';//pre上一次读取的字符  cur本次读取到的字符
-        while((d = in.read())!=-1){
-            cur = (char)d;//将本地读取的字节转换为字符赋值给cur
-            if(pre==CR&cur==LF){//是否连续读取到了回车+换行
-                break;
+    /**
+     * 判断第index组参数的名字是否为给定的名字
+     * 名字未经编码并且都是ASCII字符时直接比较字节
+     */
+    private boolean nameEquals(int index,String name){
+        int from = parameterOffsets[index*4];
+        int to = parameterOffsets[index*4+1];
+        if(isEncoded(from,to)){
+            return decode(from,to).equals(name);
+        }
+        if(to-from!=name.length()){
+            return false;
+        }
+        for(int i=0;i<name.length();i++){
+            char c = name.charAt(i);
+            if(c>=128||data[from+i]!=c){
+                return c>=128&&decode(from,to).equals(name);
             }
-            builder.append(cur);//将本次读取的字符拼接到StringBuilder中
-            pre = cur;//在进行下一个字符读取前将本地读取的字符记录为上次读取的字符
         }
-        return builder.toString().trim();
+        return true;
+    }
+
+    /**
+     * 获取第index组参数的值
+     * 允许页面输入框空着，这种情况该参数的值为null
+     */
+    private String value(int index){
+        int from = parameterOffsets[index*4+2];
+        int to = parameterOffsets[index*4+3];
+        return from==-1||from==to?null:decode(from,to);
     }
 
+    private String string(int from,int to){
+        return new String(data, from, to - from, StandardCharsets.ISO_8859_1);
+    }
 
     public String getMethod() {
+        if(method==null){
+            int end = line[0];
+            //常用的请求方式直接使用常量，不必创建字符串
+            if(HttpRequestParser.equalsIgnoreCase(data,0,end,"GET")){
+                method = "GET";
+            }else if(HttpRequestParser.equalsIgnoreCase(data,0,end,"POST")){
+                method = "POST";
+            }else{
+                method = string(0,end);
+            }
+        }
         return method;
     }
 
     public String getUri() {
+        if(uri==null){
+            uri = string(line[1],line[2]);
+        }
         return uri;
     }
 
     public String getProtocol() {
+        if(protocol==null){
+            protocol = HttpRequestParser.equalsIgnoreCase(data,line[3],line[4],"HTTP/1.1")
+                    ? "HTTP/1.1" : string(line[3],line[4]);
+        }
         return protocol;
     }
 
     /**
-     * 根据给定的消息头的名字获取对应的值
+     * 根据给定的消息头的名字获取对应的值(消息头的名字不区分大小写)
      * @param name
      * @return
      */
     public String getHeader(String name) {
-        return headers.get(name);
+        for(int i=0;i<headerCount*4;i+=4){
+            if(HttpRequestParser.equalsIgnoreCase(data,headerOffsets[i],headerOffsets[i+1],name)){
+                return string(headerOffsets[i+2],headerOffsets[i+3]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 本次请求后客户端是否希望保持链接
+     * HTTP/1.1默认保持链接，除非指定了Connection: close
+     * HTTP/1.0默认断开链接，除非指定了Connection: keep-alive
+     * @return
+     */
+    public boolean isKeepAlive(){
+        String connection = getHeader("Connection");
+        if("HTTP/1.1".equals(getProtocol())){
+            return !"close".equalsIgnoreCase(connection);
+        }
+        return "keep-alive".equalsIgnoreCase(connection);
     }
 
+    /**
+     * 获取uri中"?"左侧的请求部分
+     * @return
+     */
     public String getRequestURI() {
+        if(requestURI==null){
+            int query = queryIndex();
+            requestURI = query==-1?getUri():string(line[1],query);
+        }
         return requestURI;
     }
 
+    /**
+     * 获取uri中"?"右侧的参数部分
+     * @return 没有参数时返回null
+     */
     public String getQueryString() {
+        int query = queryIndex();
+        if(queryString==null&&query!=-1){
+            queryString = string(query+1,line[2]);
+        }
         return queryString;
     }
 
     /**
      * 根据给定的参数名获取对应的参数值
      * @param name
-     * @return
+     * @return 有多个同名参数时返回第一个
      */
     public String getParameter(String name){
-        return parameters.get(name);
+        if(!parametersParsed){
+            parseParameters();
+        }
+        for(int i=0;i<parameterCount;i++){
+            if(nameEquals(i,name)){
+                return value(i);
+            }
+        }
+        //multipart/form-data格式提交的普通表单项
+        if(isMultipart()){
+            try {
+                Part part = getPart(name);
+                if(part!=null&&part.getFileName()==null&&part.getSize()>0){
+                    return part.getString();
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 根据给定的参数名获取所有同名参数的值 例如:hobby=a&hobby=b
+     * @param name
+     * @return 没有该参数时返回null
+     */
+    public String[] getParameterValues(String name){
+        if(!parametersParsed){
+            parseParameters();
+        }
+        List<String> values = null;
+        for(int i=0;i<parameterCount;i++){
+            if(nameEquals(i,name)){
+                if(values==null){
+                    values = new ArrayList<>();
+                }
+                values.add(value(i));
+            }
+        }
+        return values==null?null:values.toArray(new String[0]);
+    }
+
+    /**
+     * 设置当前请求匹配到的路由路径，由DispatcherServlet在找到处理方法后调用
+     * @param pathPattern 例如:/myweb/article/{id}
+     */
+    public void setPathPattern(String pathPattern) {
+        this.pathPattern = pathPattern;
+        this.pathVariables = null;
+    }
+
+    public String getPathPattern() {
+        return pathPattern;
+    }
+
+    /**
+     * 根据路径变量的名字获取请求路径中对应的值
+     * 例如路由为/myweb/article/{id}，请求路径为/myweb/article/12时，id的值为12
+     * @param name
+     * @return 没有该路径变量时返回null
+     */
+    public String getPathVariable(String name){
+        return getPathVariables().get(name);
+    }
+
+    /**
+     * 获取所有路径变量，第一次获取时才从请求路径中提取
+     * @return
+     */
+    public Map<String,String> getPathVariables(){
+        if(pathVariables==null){
+            pathVariables = new HashMap<>();
+            if(pathPattern!=null&&pathPattern.indexOf('{')!=-1){
+                parsePathVariables();
+            }
+        }
+        return pathVariables;
+    }
+
+    /**
+     * 路由路径与请求路径的每一段一一对应，找到路径变量所在的段即可得到它的值
+     */
+    private void parsePathVariables(){
+        String path = getRequestURI();
+        int pos = 1;//请求路径中当前段的开始位置
+        int patternPos = 1;
+        while(patternPos<=pathPattern.length()&&pos<=path.length()){
+            int patternEnd = pathPattern.indexOf('/',patternPos);
+            if(patternEnd==-1){
+                patternEnd = pathPattern.length();
+            }
+            int end = path.indexOf('/',pos);
+            if(end==-1){
+                end = path.length();
+            }
+            if(pathPattern.startsWith("{*",patternPos)){//通配路径变量取剩余的全部路径
+                pathVariables.put(pathPattern.substring(patternPos+2,patternEnd-1),
+                        decodePath(path.substring(pos)));
+                return;
+            }
+            if(pathPattern.charAt(patternPos)=='{'){
+                pathVariables.put(pathPattern.substring(patternPos+1,patternEnd-1),
+                        decodePath(path.substring(pos,end)));
+            }
+            patternPos = patternEnd+1;
+            pos = end+1;
+        }
+    }
+
+    //路径中的"+"不表示空格
+    private static String decodePath(String value){
+        if(value.indexOf('%')==-1){
+            return value;
+        }
+        try {
+            return URLDecoder.decode(value.replace("+","%2B"),"UTF-8");
+        } catch (UnsupportedEncodingException | IllegalArgumentException e) {
+            return value;
+        }
+    }
+
+    /**
+     * 获取正文的长度(分块传输时为实际接收的长度)
+     * @return
+     */
+    public int getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * 获取读取正文的输入流
+     * 较大的正文从临时文件中读取，不会全部读入内存
+     * @return
+     */
+    public InputStream getInputStream() throws IOException {
+        if(spool!=null){
+            return spool.openStream();
+        }
+        return new ByteArrayInputStream(data,contentStart,contentLength);
+    }
+
+    private boolean isMultipart(){
+        return contentLength>0&&MultipartParser.getBoundary(getHeader("Content-Type"))!=null;
+    }
+
+    /**
+     * 获取multipart/form-data格式正文的所有部分，第一次获取时解析
+     * 每部分的内容超过内存上限时保存在临时文件中，请求处理完毕后删除
+     * @return 不是multipart/form-data格式时返回空集合
+     */
+    public List<Part> getParts() throws IOException {
+        if(parts==null){
+            String boundary = MultipartParser.getBoundary(getHeader("Content-Type"));
+            if(boundary==null||contentLength==0){
+                parts = new ArrayList<>();
+            }else{
+                try (
+                        InputStream in = getInputStream();
+                ) {
+                    parts = new MultipartParser(in, boundary, ServerContext.getBodyMemoryLimit()).parse();
+                } catch (BadRequestException e) {
+                    parts = new ArrayList<>();
+                    throw new IOException(e.getMessage(), e);
+                }
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * 根据表单项的名字获取multipart/form-data格式正文中对应的部分
+     * @param name 例如上传文件的<input type="file" name="image">中的image
+     * @return 没有该部分时返回null
+     */
+    public Part getPart(String name) throws IOException {
+        for(Part part : getParts()){
+            if(part.getName().equals(name)){
+                return part;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 删除请求使用的临时文件，归还缓冲区并将当前对象交还给解析器，请求处理完毕后调用
+     * 之后不能再使用当前对象，重复调用时忽略
+     */
+    public void release(){
+        if(data==null){
+            return;
+        }
+        BufferPool.release(data);
+        data = null;
+        if(spool!=null){
+            spool.delete();
+            spool = null;
+        }
+        if(parts!=null){
+            for(Part part : parts){
+                part.delete();
+            }
+            parts = null;
+        }
+        parser.recycle(this);
     }
 }
@@ -3,42 +3,117 @@ package com.webserver.http;
 import static com.webserver.http.HttpContext.CR;
 import static com.webserver.http.HttpContext.LF;
 
+import com.webserver.core.ServerContext;
+
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.Set;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * 响应对象
  * 该类的每一个实例用于表示一个HTTP协议规定的响应内容。
  * 每个响应由三部分构成:
  * 状态行，响应头，响应正文
+ * 同一个链接上的请求依次处理时，可以调用reset后用同一个对象生成下一个响应。
  */
 public class HttpServletResponse {
+    private static final byte[] CRLF = {CR, LF};
+    private static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+
     //状态行相关信息
     private int statusCode = 200;//状态代码
     private String statusReason = "OK";//状态描述
 
     //响应头相关信息
-    //key:响应头的名字 value:响应头对应的值
-    private Map<String,String> headers = new HashMap<>();
+    //响应头的名字和对应的值按照添加的顺序保存，reset后数组可以继续使用
+    private String[] headerNames = new String[8];
+    private String[] headerValues = new String[8];
+    private int headerCount;
 
     //响应正文的相关信息
     private File contentFile;
+    private StaticResource contentResource;//缓存的静态资源
+    private List<long[]> contentRanges;//只发送静态资源中的这些区间(206)
+    private byte[][] rangeHeaders;//发送多个区间时每个区间之前的分隔行和头
+    private byte[] rangeEnd;//发送多个区间时最后的结束分隔行
     /*
-        使用字节数组输出流中的字节数组作为正文内容
-        java.io.ByteArrayOutputStream是一个低级流，其内部维护一个字节数组
-        通过这个流写出的数据全部存入该数组中。
+        动态数据先写入body内部的缓冲区，处理完毕时全部数据都在缓冲区中则按照实际长度
+        发送Content-Length;缓冲区写满(或调用flushBuffer)时先发送状态行和响应头，
+        之后以Transfer-Encoding: chunked的格式分块发送，内存中最多只保留一个缓冲区的数据。
+     */
+    private BodyOutputStream body;
+    private byte[] contentData;//保存动态数据的(数据在body的缓冲区中)
+    private int contentDataLength;
+    private boolean gzipAccepted;//客户端是否支持gzip压缩的正文
+    private boolean chunkedAllowed;//客户端是否支持分块传输(HTTP/1.1)
+    private boolean committed;//状态行和响应头是否已经发送
+    //是否为HEAD请求:与GET一样处理并生成相同的响应头(包括Content-Length)，但不发送正文
+    private boolean headRequest;
+    //响应缓存:发送时将当前响应保存到ResponseCache中的uri以及有效期
+    private String cacheKey;
+    private long cacheTtl;
+    private ResponseCache.CachedResponse cached;//直接发送的缓存的响应
+    //异步处理超时或出错后已经用另一个响应回复了客户端，之后写出的内容全部丢弃
+    private volatile boolean detached;
+
+    private OutputStream out;//发送响应内容的输出流
+    //与out对应同一个链接的通道，为null时通过输出流发送
+    private WritableByteChannel channel;
+
+    public HttpServletResponse(Socket socket) throws IOException {
+        this(socket.getOutputStream(),socket.getChannel());
+    }
+
+    /**
+     * @param out 响应内容的去向，可以是socket的输出流，也可以是nio模式下的连接写缓冲
      */
-    private ByteArrayOutputStream baos;
-    private byte[] contentData;//保存动态数据的(数据从baos里获取的)
+    public HttpServletResponse(OutputStream out){
+        this(out,null);
+    }
 
-    private Socket socket;
+    /**
+     * @param out 响应内容的去向
+     * @param channel 与out对应同一个链接的通道，响应头和正文通过它一次写出，
+     *                发送文件时直接由内核将文件传输到该通道
+     */
+    public HttpServletResponse(OutputStream out,WritableByteChannel channel){
+        this.out = out;
+        this.channel = channel;
+    }
 
-    public HttpServletResponse(Socket socket){
-        this.socket = socket;
+    /**
+     * 清除上一个响应的全部内容，恢复为刚创建时的状态，以便生成同一个链接上的下一个响应
+     * 上一个响应必须已经发送完毕
+     */
+    public void reset(){
+        statusCode = 200;
+        statusReason = "OK";
+        Arrays.fill(headerNames,0,headerCount,null);
+        Arrays.fill(headerValues,0,headerCount,null);
+        headerCount = 0;
+        contentFile = null;
+        contentResource = null;
+        contentRanges = null;
+        rangeHeaders = null;
+        rangeEnd = null;
+        body = null;
+        contentData = null;
+        contentDataLength = 0;
+        gzipAccepted = false;
+        chunkedAllowed = false;
+        committed = false;
+        headRequest = false;
+        cacheKey = null;
+        cached = null;
     }
 
     /**
@@ -46,73 +121,267 @@ public class HttpServletResponse {
      * 将当前响应对象内容按照标准的响应格式发送给客户端
      */
     public void response() throws IOException {
-        //发送前的准备工作
-        sendBefore();
-        //3.1发送状态行
-        sendStatusLine();
-        //3.2发送响应头
-        sendHeaders();
-        //3.3发送响应正文
-        sendContent();
+        try {
+            if(committed){//已经开始分块发送，发送剩余的内容和结束块
+                body.finish();
+                System.out.println("响应正文发送完毕!");
+                return;
+            }
+            if(cached!=null){
+                sendCached();
+                return;
+            }
+            //发送前的准备工作
+            sendBefore();
+            if(cacheKey!=null){
+                saveToCache();
+            }
+            //3.1生成状态行和响应头
+            ByteBuffer head = buildHead();
+            //3.2与响应正文一起发送
+            sendContent(head);
+        } finally {
+            //正文已经写出，缓冲区归还给缓冲区池
+            if(body!=null){
+                body.release();
+            }
+            contentData = null;
+        }
     }
     /**
      * 响应发送前的准备工作
      */
     private void sendBefore(){
-        if(baos!=null){//不为null说明处理请求的环节用过过它写出过动态数据
-            //获取到baos内部的字节数组(获取所用之前通过这个流写出的字节)
-            contentData = baos.toByteArray();
-            //根据该数组的长度设置响应头Content-Length
-            addHeader("Content-Length",contentData.length+"");
+        if(body!=null){//不为null说明处理请求的环节用过过它写出过动态数据
+            //直接使用body内部的缓冲区，不再复制
+            contentData = body.buf;
+            contentDataLength = body.count;
+            String contentType = getHeader("Content-Type");
+            if(gzipAccepted&&Compression.isCompressible(contentType,contentDataLength)){
+                contentData = Compression.gzip(contentData,0,contentDataLength);
+                contentDataLength = contentData.length;
+                addHeader("Content-Encoding","gzip");
+                addHeader("Vary","Accept-Encoding");
+            }
+            //根据数据的长度设置响应头Content-Length
+            addHeader("Content-Length",contentDataLength+"");
+        }else if(contentFile==null&&contentResource==null){
+            //没有正文也要告知长度，否则客户端无法在持久链接上区分下一个响应
+            addHeader("Content-Length","0");
         }
     }
 
 
-    private void sendStatusLine() throws IOException {
-        String line = "HTTP/1.1"+" "+statusCode+" "+statusReason;
-        println(line);
-        System.out.println("发送状态行:"+line);
+    /**
+     * 发送缓存的响应，只需在缓存的响应头之后加上与当前链接有关的响应头
+     */
+    private void sendCached() throws IOException {
+        ResponseHead head = ResponseHead.get();
+        head.write(cached.getHead());
+        for(int i=0;i<headerCount;i++){
+            head.header(headerNames[i],headerValues[i]);
+        }
+        head.end();
+        System.out.println("发送缓存的响应");
+        if(headRequest){
+            writeAll(head.toByteBuffer());
+        }else{
+            writeShared(head.toByteBuffer(),ByteBuffer.wrap(cached.getBody()));
+        }
     }
-    private void sendHeaders() throws IOException {
-        //遍历headers将所有响应头发送给浏览器
-        Set<Map.Entry<String,String>> entrySet = headers.entrySet();
-        for(Map.Entry<String,String> e : entrySet){
-            String name = e.getKey();//获取响应头的名字
-            String value = e.getValue();//获取响应头对应的值
-            //Content-Type: text/html
-            String line = name + ": " + value;
-            println(line);
-            System.out.println("响应头:"+line);
+
+    /**
+     * 将正文全部在内存中的响应保存到响应缓存
+     */
+    private void saveToCache(){
+        if(contentFile!=null||contentResource!=null||contentRanges!=null
+                ||(statusCode!=200&&statusCode!=301&&statusCode!=302&&statusCode!=404)){
+            return;
         }
+        ResponseHead head = new ResponseHead();
+        head.statusLine(statusCode,statusReason);
+        for(int i=0;i<headerCount;i++){
+            String name = headerNames[i];
+            if(!name.equals("Connection")&&!name.equals("Keep-Alive")){
+                head.header(name,headerValues[i]);
+            }
+        }
+        byte[] data = contentData==null?new byte[0]:Arrays.copyOf(contentData,contentDataLength);
+        ResponseCache.put(cacheKey,gzipAccepted,new ResponseCache.CachedResponse(
+                head.toByteArray(),data,System.currentTimeMillis()+cacheTtl
+        ));
+    }
 
+    /**
+     * 将状态行和响应头写入当前线程的缓冲区
+     * @return 缓冲区中的内容，需在当前线程下一次生成响应头之前发送
+     */
+    private ByteBuffer buildHead(){
+        ResponseHead head = ResponseHead.get();
+        head.statusLine(statusCode,statusReason);
+        System.out.println("发送状态行:HTTP/1.1 "+statusCode+" "+statusReason);
+        //遍历headers将所有响应头发送给浏览器
+        for(int i=0;i<headerCount;i++){
+            head.header(headerNames[i],headerValues[i]);
+        }
+        if(contentResource!=null){//静态资源的响应头已经预先生成好了
+            head.write(statusCode==304||statusCode==206
+                    ? contentResource.getValidatorHeaderBytes()
+                    : contentResource.getHeaderBytes());
+        }
         //单独发送回车+换行表示响应头部分发送完毕
-        println("");
+        head.end();
+        return head.toByteBuffer();
     }
-    private void sendContent() throws IOException {
-        OutputStream out = socket.getOutputStream();
-        if(contentData!=null){//有动态数据
-            out.write(contentData);
+
+    /**
+     * 发送响应头和正文，内存中的正文与响应头一次写出
+     */
+    private void sendContent(ByteBuffer head) throws IOException {
+        if(statusCode==304||headRequest){//304响应和HEAD请求的响应没有正文
+            writeAll(head);
+        }else if(contentData!=null){//有动态数据
+            writeAll(head,ByteBuffer.wrap(contentData,0,contentDataLength));
+        }else if(contentRanges!=null){
+            sendRanges(head);
+        }else if(contentResource!=null){
+            if(contentResource.getData()!=null){//内容已在内存中
+                writeShared(head,ByteBuffer.wrap(contentResource.getData()));
+            }else{
+                writeAll(head);
+                sendFile(contentResource.getFile(),0,contentResource.getLength());
+            }
         }else if(contentFile!=null) {
-            byte[] buf = new byte[1024 * 10];
+            writeAll(head);
+            sendFile(contentFile,0,contentFile.length());
+        }else{
+            writeAll(head);
+        }
+        System.out.println("响应正文发送完毕!");
+    }
+
+    /**
+     * 将多段数据一次写出
+     * 有通道时使用聚集写(GatheringByteChannel)，否则依次写入输出流
+     */
+    private void writeAll(ByteBuffer... buffers) throws IOException {
+        if(detached){
+            return;
+        }
+        if(channel instanceof GatheringByteChannel){
+            GatheringByteChannel gc = (GatheringByteChannel)channel;
+            long remaining = 0;
+            for(ByteBuffer buffer : buffers){
+                remaining += buffer.remaining();
+            }
+            while(remaining>0){
+                remaining -= gc.write(buffers);
+            }
+        }else{
+            for(ByteBuffer buffer : buffers){
+                out.write(buffer.array(),buffer.arrayOffset()+buffer.position(),buffer.remaining());
+            }
+        }
+    }
+
+    /**
+     * 发送响应头和缓存中的内容
+     * 缓存中的内容创建后不再修改，输出支持SharedDataTransfer时直接交给输出而不复制。
+     * 响应头在线程共享的缓冲区中，仍然需要复制。
+     * @param head 响应头，为null表示已经发送过
+     * @param data 不会再被修改的数据
+     */
+    private void writeShared(ByteBuffer head,ByteBuffer... data) throws IOException {
+        if(out instanceof SharedDataTransfer){
+            if(head!=null){
+                writeAll(head);
+            }
+            for(ByteBuffer buffer : data){
+                ((SharedDataTransfer)out).transferShared(buffer);
+            }
+        }else if(head!=null){
+            ByteBuffer[] buffers = new ByteBuffer[data.length+1];
+            buffers[0] = head;
+            System.arraycopy(data,0,buffers,1,data.length);
+            writeAll(buffers);
+        }else{
+            writeAll(data);
+        }
+    }
+
+    /**
+     * 依次发送静态资源中被请求的每个区间
+     * 内容在内存中时所有区间与响应头一次写出
+     */
+    private void sendRanges(ByteBuffer head) throws IOException {
+        byte[] data = contentResource.getData();
+        List<ByteBuffer> buffers = new ArrayList<>();
+        for(int i=0;i<contentRanges.size();i++){
+            long[] range = contentRanges.get(i);
+            if(rangeHeaders!=null){
+                buffers.add(ByteBuffer.wrap(rangeHeaders[i]));
+            }
+            long count = range[1]-range[0]+1;
+            if(data!=null){//直接发送内存中对应的部分
+                buffers.add(ByteBuffer.wrap(data,(int)range[0],(int)count));
+            }else{//只传输文件中对应的部分
+                writeShared(head,buffers.toArray(new ByteBuffer[0]));
+                head = null;
+                buffers.clear();
+                sendFile(contentResource.getFile(),range[0],count);
+            }
+        }
+        if(rangeEnd!=null){
+            buffers.add(ByteBuffer.wrap(rangeEnd));
+        }
+        writeShared(head,buffers.toArray(new ByteBuffer[0]));
+    }
+
+    /**
+     * 发送文件中的一段内容
+     * 优先使用零拷贝的方式:文件内容由内核直接传输到socket(sendfile)，不经过java堆。
+     * 无法使用通道时再通过输出流复制。
+     */
+    private void sendFile(File file,long position,long count) throws IOException {
+        if(detached){
+            return;
+        }
+        if(out instanceof FileTransfer){
+            ((FileTransfer)out).transferFile(file,position,count);
+        }else if(channel!=null&&ServerContext.isZeroCopy()){
+            try (
+                    FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            ) {
+                //transferTo一次不一定能传输全部内容
+                while(count>0){
+                    long len = fc.transferTo(position,count,channel);
+                    if(len<=0){
+                        //阻塞的通道只有在文件被截短时才会传输0字节，已发送的Content-Length无法兑现，
+                        //抛出异常断开链接，避免客户端把后续响应当作正文的剩余部分
+                        throw new IOException("文件在发送期间被截短了:"+file);
+                    }
+                    position += len;
+                    count -= len;
+                }
+            }
+        }else{
+            byte[] buf = BufferPool.acquire(1024 * 8);
             int len;
             try (
-                    FileInputStream fis = new FileInputStream(contentFile);
+                    FileInputStream fis = new FileInputStream(file);
             ) {
-                while ((len = fis.read(buf)) != -1) {
+                fis.skip(position);
+                while (count>0&&(len = fis.read(buf,0,(int)Math.min(buf.length,count))) != -1) {
                     out.write(buf, 0, len);
+                    count -= len;
                 }
+                if(count>0){
+                    throw new IOException("文件在发送期间被截短了:"+file);
+                }
+            } finally {
+                BufferPool.release(buf);
             }
         }
-        System.out.println("响应正文发送完毕!");
-    }
-
-
-    private void println(String line) throws IOException {
-        OutputStream out = socket.getOutputStream();
-        byte[] data = line.getBytes(StandardCharsets.ISO_8859_1);
-        out.write(data);
-        out.write(CR);//发送回车符
-        out.write(LF);//发送换行符
     }
 
     public int getStatusCode() {
@@ -146,13 +415,151 @@ public class HttpServletResponse {
         addHeader("Content-Length",contentFile.length()+"");
     }
 
+    public StaticResource getContentResource() {
+        return contentResource;
+    }
+
+    /**
+     * 将一个静态资源作为正文发送
+     * @param contentResource
+     */
+    public void setContentResource(StaticResource contentResource) {
+        this.contentResource = contentResource;
+    }
+
+    /**
+     * 告知客户端其缓存的静态资源没有变化，可以继续使用(304)
+     * @param contentResource
+     */
+    public void sendNotModified(StaticResource contentResource){
+        statusCode = 304;
+        statusReason = "Not Modified";
+        this.contentResource = contentResource;
+    }
+
+    /**
+     * 只发送静态资源中的部分内容(206)
+     * 一个区间时直接发送该区间，多个区间时以multipart/byteranges格式发送
+     * @param contentResource 静态资源
+     * @param ranges 要发送的区间，每个元素为{开始位置,结束位置}
+     */
+    public void setContentRanges(StaticResource contentResource,List<long[]> ranges){
+        statusCode = 206;
+        statusReason = "Partial Content";
+        this.contentResource = contentResource;
+        this.contentRanges = ranges;
+        long length = contentResource.getLength();
+        if(ranges.size()==1){
+            long[] range = ranges.get(0);
+            addHeader("Content-Type",contentResource.getMimeType());
+            addHeader("Content-Range","bytes "+range[0]+"-"+range[1]+"/"+length);
+            addHeader("Content-Length",(range[1]-range[0]+1)+"");
+            return;
+        }
+        String boundary = Long.toHexString(System.nanoTime())+Long.toHexString(length);
+        long total = 0;
+        rangeHeaders = new byte[ranges.size()][];
+        for(int i=0;i<ranges.size();i++){
+            long[] range = ranges.get(i);
+            String head = "\r\n--" + boundary + "\r\n"
+                    + "Content-Type: " + contentResource.getMimeType() + "\r\n"
+                    + "Content-Range: bytes " + range[0] + "-" + range[1] + "/" + length + "\r\n\r\n";
+            rangeHeaders[i] = head.getBytes(StandardCharsets.ISO_8859_1);
+            total += rangeHeaders[i].length + range[1] - range[0] + 1;
+        }
+        rangeEnd = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.ISO_8859_1);
+        total += rangeEnd.length;
+        addHeader("Content-Type","multipart/byteranges; boundary="+boundary);
+        addHeader("Content-Length",total+"");
+    }
+
+    /**
+     * 告知客户端请求的区间都超出了资源的长度(416)
+     * @param contentResource
+     */
+    public void sendRangeNotSatisfiable(StaticResource contentResource){
+        statusCode = 416;
+        statusReason = "Range Not Satisfiable";
+        addHeader("Content-Range","bytes */"+contentResource.getLength());
+    }
+
+    /**
+     * 发送时将当前响应保存到响应缓存中，由ResponseCache.enable调用
+     * @param uri 请求的uri
+     * @param ttl 有效期(毫秒)
+     */
+    void setCacheKey(String uri,long ttl){
+        this.cacheKey = uri;
+        this.cacheTtl = ttl;
+    }
+
+    /**
+     * 直接发送一个缓存的响应，不再需要处理请求
+     * @param cached 由ResponseCache.get获取
+     */
+    public void setCachedResponse(ResponseCache.CachedResponse cached){
+        this.cached = cached;
+    }
+
+    /**
+     * 设置客户端是否支持gzip压缩的正文，支持时较大的动态正文会被压缩后发送
+     * @param gzipAccepted
+     */
+    public void setGzipAccepted(boolean gzipAccepted) {
+        this.gzipAccepted = gzipAccepted;
+    }
+
     /**
      * 添加一个要发送的响应头
      * @param name
      * @param value
      */
     public void addHeader(String name,String value){
-        this.headers.put(name,value);
+        if(committed){
+            System.out.println("响应头已经发送，忽略:"+name);
+            return;
+        }
+        //同名的响应头只保留最后一次设置的值
+        for(int i=0;i<headerCount;i++){
+            if(headerNames[i].equals(name)){
+                headerValues[i] = value;
+                return;
+            }
+        }
+        if(headerCount==headerNames.length){
+            headerNames = Arrays.copyOf(headerNames,headerCount*2);
+            headerValues = Arrays.copyOf(headerValues,headerCount*2);
+        }
+        headerNames[headerCount] = name;
+        headerValues[headerCount] = value;
+        headerCount++;
+    }
+
+    /**
+     * 获取已添加的响应头的值
+     * @param name
+     * @return 没有该响应头时返回null
+     */
+    public String getHeader(String name){
+        for(int i=0;i<headerCount;i++){
+            if(headerNames[i].equals(name)){
+                return headerValues[i];
+            }
+        }
+        return null;
+    }
+
+    private void removeHeader(String name){
+        for(int i=0;i<headerCount;i++){
+            if(headerNames[i].equals(name)){
+                headerCount--;
+                System.arraycopy(headerNames,i+1,headerNames,i,headerCount-i);
+                System.arraycopy(headerValues,i+1,headerValues,i,headerCount-i);
+                headerNames[headerCount] = null;
+                headerValues[headerCount] = null;
+                return;
+            }
+        }
     }
 
     /**
@@ -160,21 +567,46 @@ public class HttpServletResponse {
      * @return
      */
     public OutputStream getOutputStream(){
-        if(baos==null){
-            baos = new ByteArrayOutputStream();
+        if(body==null){
+            body = new BodyOutputStream(ServerContext.getResponseBufferSize());
         }
-        return baos;
+        return body;
     }
 
+    /**
+     * 返回一个字符输出流，字符按照UTF-8编码后直接写入正文的缓冲区，
+     * 不再经过BufferedWriter和OutputStreamWriter各自的缓冲区
+     * @return
+     */
     public PrintWriter getWriter(){
-        return new PrintWriter(
-                new BufferedWriter(
-                        new OutputStreamWriter(
-                                getOutputStream(),//baos
-                                StandardCharsets.UTF_8
-                        )
-                ),true
-        );
+        return new PrintWriter(new Utf8Writer(),true);
+    }
+
+    /**
+     * 立即发送已写出的正文
+     * 第一次调用时先发送状态行和响应头，之后不能再修改它们。
+     * 客户端不支持分块传输时不做任何事情，正文在处理完毕后一并发送。
+     */
+    public void flushBuffer() throws IOException {
+        if(body!=null){
+            body.flushBuffer();
+        }
+    }
+
+    /**
+     * 状态行和响应头是否已经发送
+     * @return
+     */
+    public boolean isCommitted() {
+        return committed;
+    }
+
+    /**
+     * 设置客户端是否支持分块传输，不支持时动态数据全部缓存在内存中，处理完毕后一并发送
+     * @param chunkedAllowed
+     */
+    public void setChunkedAllowed(boolean chunkedAllowed) {
+        this.chunkedAllowed = chunkedAllowed;
     }
 
     /**
@@ -185,6 +617,70 @@ public class HttpServletResponse {
         addHeader("Content-Type",mime);
     }
 
+    /**
+     * 设置本次响应后是否保持链接
+     * @param keepAlive 是否保持链接
+     * @param timeout 保持链接时告知客户端的空闲超时时间(秒)
+     */
+    public void setKeepAlive(boolean keepAlive,int timeout){
+        if(keepAlive){
+            addHeader("Connection","keep-alive");
+            addHeader("Keep-Alive","timeout="+timeout);
+        }else{
+            addHeader("Connection","close");
+        }
+    }
+
+    /**
+     * 告知客户端请求格式有误，发送后会断开链接
+     */
+    public void sendBadRequest(){
+        statusCode = 400;
+        statusReason = "Bad Request";
+        setKeepAlive(false,0);
+    }
+
+    /**
+     * 根据解析请求时出现的错误告知客户端，发送后会断开链接
+     * @param e 正文过大时回复413，请求头过大时回复431，其他情况回复400
+     */
+    public void sendBadRequest(BadRequestException e){
+        sendBadRequest();
+        if(e instanceof PayloadTooLargeException){
+            statusCode = 413;
+            statusReason = "Payload Too Large";
+        }else if(e instanceof HeaderTooLargeException){
+            statusCode = 431;
+            statusReason = "Request Header Fields Too Large";
+        }
+    }
+
+    /**
+     * 设置当前请求是否为HEAD请求，是则发送响应时只发送状态行和响应头
+     * @param headRequest
+     */
+    public void setHeadRequest(boolean headRequest) {
+        this.headRequest = headRequest;
+    }
+
+    /**
+     * 使当前响应失效，之后写出的正文全部丢弃，不会再发送到链接上
+     * 异步处理超时或出错后已经用另一个响应回复了客户端，而Controller方法可能仍在使用当前响应。
+     * 正文的缓冲区此时可能仍在被写入，需等Controller方法结束后再调用release归还。
+     */
+    public void detach(){
+        detached = true;
+    }
+
+    /**
+     * 归还正文的缓冲区(响应失效后使用，正常发送时response方法会自动归还)
+     */
+    public void release(){
+        if(body!=null){
+            body.release();
+        }
+    }
+
     /**
      * 要求客户端重定向到指定路径
      * @param uri
@@ -202,4 +698,243 @@ public class HttpServletResponse {
         addHeader("Location",uri);
 
     }
+
+    /**
+     * 动态数据的输出流
+     * 数据先写入缓冲区，缓冲区写满时:
+     * 不支持分块传输则扩大缓冲区，继续全部缓存;
+     * 否则发送状态行和响应头，然后将缓冲区中的数据作为一个块发送并清空缓冲区。
+     * PrintWriter每输出一行都会调用flush，因此flush不会立即发送数据，需要时调用flushBuffer。
+     */
+    private class BodyOutputStream extends OutputStream {
+        private byte[] buf;
+        private int count;
+        private OutputStream content;//开始分块发送后正文的去向(块输出流，或压缩后再分块)
+
+        BodyOutputStream(int size) {
+            buf = BufferPool.acquire(size);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if(detached){
+                return;
+            }
+            if(count==buf.length){
+                overflow();
+            }
+            buf[count++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(detached){
+                return;
+            }
+            while(len>0){
+                if(count==buf.length){
+                    overflow();
+                }
+                if(content!=null&&count==0&&len>=buf.length){//大块数据直接发送
+                    content.write(b,off,len);
+                    return;
+                }
+                int n = Math.min(len,buf.length-count);
+                System.arraycopy(b,off,buf,count,n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        /**
+         * 缓冲区已满
+         */
+        private void overflow() throws IOException {
+            if(!chunkedAllowed){
+                byte[] newBuf = BufferPool.acquire(buf.length*2);
+                System.arraycopy(buf,0,newBuf,0,count);
+                BufferPool.release(buf);
+                buf = newBuf;
+                return;
+            }
+            sendBuffer();
+        }
+
+        /**
+         * 发送缓冲区中的数据，必要时先发送状态行和响应头
+         */
+        private void sendBuffer() throws IOException {
+            if(content==null){
+                commit();
+            }
+            if(count>0){
+                content.write(buf,0,count);
+                count = 0;
+            }
+        }
+
+        /**
+         * 发送状态行和响应头，之后正文以分块的格式发送
+         */
+        private void commit() throws IOException {
+            removeHeader("Content-Length");
+            addHeader("Transfer-Encoding","chunked");
+            //此时正文长度已经超过缓冲区，只需判断类型是否可以压缩
+            boolean gzip = gzipAccepted
+                    &&Compression.isCompressible(getHeader("Content-Type"),Long.MAX_VALUE);
+            if(gzip){
+                addHeader("Content-Encoding","gzip");
+                addHeader("Vary","Accept-Encoding");
+            }
+            writeAll(buildHead());
+            committed = true;
+            if(headRequest){//HEAD请求只发送响应头，之后写出的正文全部丢弃
+                content = new DiscardOutputStream();
+                return;
+            }
+            content = new ChunkedOutputStream();
+            if(gzip){//创建时就会写出gzip的文件头，必须在响应头之后
+                content = new GZIPOutputStream(content,buf.length,true);
+            }
+        }
+
+        void flushBuffer() throws IOException {
+            if(chunkedAllowed){
+                sendBuffer();
+                content.flush();
+            }
+        }
+
+        /**
+         * 发送剩余的数据以及结束块
+         */
+        void finish() throws IOException {
+            sendBuffer();
+            content.close();
+        }
+
+        /**
+         * 归还缓冲区，之后不能再写入
+         */
+        void release(){
+            BufferPool.release(buf);
+            buf = null;
+        }
+    }
+
+    /**
+     * 将字符按照UTF-8编码后写入正文
+     * 一个字符需要两个char表示(代理对)时，两部分可能分两次写入，前一半暂时保存下来
+     */
+    private class Utf8Writer extends Writer {
+        private char high;//尚未写入的代理对的前一半
+
+        @Override
+        public void write(int c) throws IOException {
+            OutputStream body = getOutputStream();
+            if(high!=0){
+                char h = high;
+                high = 0;
+                if(Character.isLowSurrogate((char)c)){
+                    int cp = Character.toCodePoint(h,(char)c);
+                    body.write(0xF0|cp>>18);
+                    body.write(0x80|cp>>12&0x3F);
+                    body.write(0x80|cp>>6&0x3F);
+                    body.write(0x80|cp&0x3F);
+                    return;
+                }
+                body.write('?');//不成对的代理
+            }
+            if(c<0x80){
+                body.write(c);
+            }else if(c<0x800){
+                body.write(0xC0|c>>6);
+                body.write(0x80|c&0x3F);
+            }else if(Character.isHighSurrogate((char)c)){
+                high = (char)c;
+            }else if(Character.isLowSurrogate((char)c)){
+                body.write('?');
+            }else{
+                body.write(0xE0|c>>12);
+                body.write(0x80|c>>6&0x3F);
+                body.write(0x80|c&0x3F);
+            }
+        }
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            for(int i=off;i<off+len;i++){
+                write(cbuf[i]);
+            }
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            for(int i=off;i<off+len;i++){
+                write(str.charAt(i));
+            }
+        }
+
+        @Override
+        public void flush() {
+            //数据已经在正文的缓冲区中，何时发送由BodyOutputStream决定
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * 丢弃写出的全部数据，HEAD请求的响应头发送后正文写入这里
+     */
+    private static class DiscardOutputStream extends OutputStream {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    }
+
+    /**
+     * 将写出的数据以分块传输的格式发送
+     * 每块的格式为:十六进制的长度 CRLF 数据 CRLF，关闭时发送长度为0的结束块
+     * 每块一次写出，关闭时不会关闭链接(链接可能还要继续使用)
+     */
+    private class ChunkedOutputStream extends OutputStream {
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[]{(byte)b},0,1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(len==0){//长度为0的块表示结束，不能发送
+                return;
+            }
+            byte[] size = (Integer.toHexString(len)+"\r\n").getBytes(StandardCharsets.ISO_8859_1);
+            writeAll(
+                    ByteBuffer.wrap(size),ByteBuffer.wrap(b,off,len),ByteBuffer.wrap(CRLF)
+            );
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(!closed){
+                closed = true;
+                writeAll(ByteBuffer.wrap(LAST_CHUNK));
+                out.flush();
+            }
+        }
+    }
 }
@@ -0,0 +1,246 @@
+package com.webserver.http;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * multipart/form-data格式正文的解析器
+ * 正文以流的方式逐字节读取，每一部分的内容边读取边保存，
+ * 超过内存上限的部分写入临时文件，因此上传大文件不会占用大量堆内存。
+ * 格式:
+ * --分隔符 CRLF 消息头... CRLF CRLF 内容 CRLF --分隔符 ... CRLF --分隔符-- CRLF
+ */
+class MultipartParser {
+    private static final int MAX_HEADER_LINE = 8 * 1024;
+
+    private InputStream in;
+    private byte[] delimiter;//CRLF--分隔符
+    private int[] failure;//查找分隔符时使用的KMP部分匹配表
+    private int memoryLimit;
+
+    /**
+     * @param in 正文
+     * @param boundary Content-Type中的boundary参数
+     * @param memoryLimit 每部分内容超过该大小时写入临时文件
+     */
+    MultipartParser(InputStream in, String boundary, int memoryLimit) {
+        //正文开头的分隔符前面没有CRLF，补上一个使所有分隔符格式一致
+        this.in = new BufferedInputStream(new SequenceInputStream(
+                new ByteArrayInputStream(new byte[]{'\r','\n'}), in
+        ));
+        this.delimiter = ("\r\n--" + boundary).getBytes(StandardCharsets.ISO_8859_1);
+        this.memoryLimit = memoryLimit;
+        failure = new int[delimiter.length];
+        for(int i=1,k=0;i<delimiter.length;i++){
+            while(k>0&&delimiter[i]!=delimiter[k]){
+                k = failure[k-1];
+            }
+            if(delimiter[i]==delimiter[k]){
+                k++;
+            }
+            failure[i] = k;
+        }
+    }
+
+    /**
+     * 从Content-Type中获取分隔符
+     * @param contentType 例如:multipart/form-data; boundary=----WebKitFormBoundary7MA4YWxk
+     * @return 不是multipart/form-data时返回null
+     */
+    static String getBoundary(String contentType){
+        if(contentType==null||!contentType.toLowerCase().startsWith("multipart/form-data")){
+            return null;
+        }
+        for(String param : contentType.split(";")){
+            param = param.trim();
+            if(param.toLowerCase().startsWith("boundary=")){
+                String boundary = param.substring(9);
+                if(boundary.length()>1&&boundary.startsWith("\"")&&boundary.endsWith("\"")){
+                    boundary = boundary.substring(1,boundary.length()-1);
+                }
+                return boundary.isEmpty()?null:boundary;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 解析所有部分
+     * 出错时已创建的临时文件会被删除
+     * @return
+     */
+    List<Part> parse() throws IOException, BadRequestException {
+        List<Part> parts = new ArrayList<>();
+        try {
+            //第一个分隔符之前的内容忽略
+            if(!readUntilDelimiter(null)){
+                throw new BadRequestException("multipart正文格式错误");
+            }
+            while(true){
+                //分隔符之后为--表示结束，否则为CRLF
+                int b1 = in.read();
+                int b2 = in.read();
+                if(b1=='-'&&b2=='-'){
+                    return parts;
+                }
+                if(b1!='\r'||b2!='\n'){
+                    throw new BadRequestException("multipart正文格式错误");
+                }
+                parts.add(readPart());
+            }
+        } catch (IOException | BadRequestException e) {
+            for(Part part : parts){
+                part.delete();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * 读取一部分的消息头和内容
+     */
+    private Part readPart() throws IOException, BadRequestException {
+        String name = null;
+        String fileName = null;
+        String contentType = null;
+        String line;
+        while(!(line = readLine()).isEmpty()){
+            int colon = line.indexOf(':');
+            if(colon==-1){
+                throw new BadRequestException("multipart消息头格式错误");
+            }
+            String headerName = line.substring(0,colon).trim();
+            String value = line.substring(colon+1).trim();
+            if(headerName.equalsIgnoreCase("Content-Disposition")){
+                //例如:form-data; name="image"; filename="a.png"
+                name = getParam(value,"name");
+                fileName = getParam(value,"filename");
+            }else if(headerName.equalsIgnoreCase("Content-Type")){
+                contentType = value;
+            }
+        }
+        if(name==null){
+            throw new BadRequestException("multipart缺少Content-Disposition");
+        }
+        PartSink sink = new PartSink();
+        try {
+            if(!readUntilDelimiter(sink)){
+                throw new BadRequestException("multipart正文不完整");
+            }
+        } catch (IOException | BadRequestException e) {
+            sink.delete();
+            throw e;
+        }
+        return sink.toPart(name,fileName,contentType);
+    }
+
+    /**
+     * 读取数据直到遇到分隔符
+     * @param sink 分隔符之前的数据写入该处，为null时丢弃
+     * @return false表示正文结束时仍没有遇到分隔符
+     */
+    private boolean readUntilDelimiter(PartSink sink) throws IOException {
+        int matched = 0;
+        int b;
+        while((b = in.read())!=-1){
+            while(matched>0&&b!=(delimiter[matched]&0xff)){
+                //已匹配的部分不是分隔符，回退到仍可能匹配的位置，其余部分属于内容
+                int next = failure[matched-1];
+                if(sink!=null){
+                    sink.write(delimiter,0,matched-next);
+                }
+                matched = next;
+            }
+            if(b==(delimiter[matched]&0xff)){
+                matched++;
+                if(matched==delimiter.length){
+                    return true;
+                }
+            }else if(sink!=null){
+                sink.write(b);
+            }
+        }
+        return false;
+    }
+
+    private String readLine() throws IOException, BadRequestException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while((b = in.read())!='\n'){
+            if(b==-1||line.size()>MAX_HEADER_LINE){
+                throw new BadRequestException("multipart消息头格式错误");
+            }
+            line.write(b);
+        }
+        byte[] data = line.toByteArray();
+        int len = data.length>0&&data[data.length-1]=='\r'?data.length-1:data.length;
+        //浏览器以UTF-8发送中文文件名
+        return new String(data,0,len,StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 获取消息头中的参数 例如:从form-data; name="image"中获取name
+     */
+    private static String getParam(String value,String name){
+        for(String param : value.split(";")){
+            param = param.trim();
+            int eq = param.indexOf('=');
+            if(eq!=-1&&param.substring(0,eq).trim().equalsIgnoreCase(name)){
+                String v = param.substring(eq+1).trim();
+                if(v.length()>1&&v.startsWith("\"")&&v.endsWith("\"")){
+                    v = v.substring(1,v.length()-1);
+                }
+                return v;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 保存一部分的内容，超过内存上限后改为写入临时文件
+     */
+    private class PartSink {
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private BodySpool spool;
+        private byte[] single = new byte[1];
+
+        void write(int b) throws IOException {
+            single[0] = (byte)b;
+            write(single,0,1);
+        }
+
+        void write(byte[] data,int off,int len) throws IOException {
+            if(spool==null&&memory.size()+len>memoryLimit){
+                spool = new BodySpool();
+                spool.write(memory.toByteArray(),0,memory.size());
+                memory = null;
+            }
+            if(spool!=null){
+                spool.write(data,off,len);
+            }else{
+                memory.write(data,off,len);
+            }
+        }
+
+        Part toPart(String name,String fileName,String contentType) throws IOException {
+            if(spool!=null){
+                spool.finish();
+                return new Part(name,fileName,contentType,null,spool);
+            }
+            return new Part(name,fileName,contentType,memory.toByteArray(),null);
+        }
+
+        void delete(){
+            if(spool!=null){
+                spool.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package com.webserver.http;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * multipart/form-data格式的正文中的一部分(一个表单项或一个上传的文件)
+ * 内容不超过内存上限时保存在内存中，否则保存在临时文件中。
+ */
+public class Part {
+    private String name;//表单项的名字
+    private String fileName;//上传的文件名，不是文件时为null
+    private String contentType;
+    private byte[] data;//内容在内存中时不为null
+    private BodySpool spool;//内容在临时文件中时不为null
+
+    Part(String name, String fileName, String contentType, byte[] data, BodySpool spool) {
+        this.name = name;
+        this.fileName = fileName;
+        this.contentType = contentType;
+        this.data = data;
+        this.spool = spool;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getFileName() {
+        return fileName;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    public long getSize() {
+        return data!=null?data.length:spool.getLength();
+    }
+
+    /**
+     * 读取该部分的内容
+     * @return
+     */
+    public InputStream getInputStream() throws IOException {
+        return data!=null?new ByteArrayInputStream(data):spool.openStream();
+    }
+
+    /**
+     * 以UTF-8将内容转换为字符串，用于普通的表单项
+     * @return
+     */
+    public String getString() throws IOException {
+        if(data!=null){
+            return new String(data, StandardCharsets.UTF_8);
+        }
+        try (
+                InputStream in = spool.openStream();
+        ) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[1024 * 10];
+            int len;
+            while((len = in.read(buf))!=-1){
+                out.write(buf,0,len);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    /**
+     * 将内容保存到指定的文件 例如保存上传的图片
+     * 内容在临时文件中时直接移动，不经过内存
+     * @param dest
+     */
+    public void write(File dest) throws IOException {
+        if(spool!=null){
+            spool.moveTo(dest);
+            return;
+        }
+        try (
+                FileOutputStream fos = new FileOutputStream(dest);
+        ) {
+            fos.write(data);
+        }
+    }
+
+    /**
+     * 删除临时文件
+     */
+    void delete(){
+        if(spool!=null){
+            spool.delete();
+        }
+    }
+}
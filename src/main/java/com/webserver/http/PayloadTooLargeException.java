@@ -0,0 +1,16 @@
+package com.webserver.http;
+
+/**
+ * 请求正文过大异常
+ * 当请求正文的长度超过配置的上限时HttpRequestParser会抛出该异常，应回复413
+ */
+public class PayloadTooLargeException extends BadRequestException{
+    private static final long serialVersionUID = 1L;
+
+    public PayloadTooLargeException() {
+    }
+
+    public PayloadTooLargeException(String message) {
+        super(message);
+    }
+}
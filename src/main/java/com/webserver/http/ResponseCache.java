@@ -0,0 +1,147 @@
+package com.webserver.http;
+
+import com.webserver.core.ServerContext;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 完整响应的缓存
+ * 对于@RequestMapping(cacheTtl=...)标注的GET请求，第一次处理后将生成好的状态行，响应头和正文
+ * 按照发送的格式保存下来，有效期内相同路径(含参数)的请求直接发送保存的字节，
+ * 不再经过DispatcherServlet，也不调用Controller，请求只需要解析到能获取路径为止。
+ * 客户端是否支持gzip会影响正文，因此每个路径分别保存压缩和未压缩两种版本。
+ * Connection和Keep-Alive与每个链接有关，不保存在缓存中，发送时再添加。
+ * 查找时只读取ConcurrentHashMap，不需要加锁。
+ */
+public class ResponseCache {
+    //key:请求的uri(含参数) value:该uri对应的缓存
+    private static final ConcurrentHashMap<String,Entry> cache = new ConcurrentHashMap<>();
+    private static final int maxEntries = ServerContext.getResponseCacheMaxEntries();
+
+    /**
+     * 查找请求对应的有效缓存
+     * @param request
+     * @return 没有缓存或已过期时返回null
+     */
+    public static CachedResponse get(HttpServletRequest request){
+        if(cache.isEmpty()||!"GET".equals(request.getMethod())){
+            return null;
+        }
+        Entry entry = cache.get(request.getUri());
+        if(entry==null){
+            return null;
+        }
+        boolean gzip = Compression.acceptsGzip(request.getHeader("Accept-Encoding"));
+        CachedResponse cached = gzip?entry.gzip:entry.plain;
+        if(cached==null){
+            return null;
+        }
+        if(cached.getExpires()<=System.currentTimeMillis()){
+            cache.remove(request.getUri(),entry);
+            return null;
+        }
+        return cached;
+    }
+
+    /**
+     * 要求将当前请求的响应缓存下来，响应发送时生成缓存
+     * 只有GET请求，并且正文全部在内存中(没有分块发送)的响应才会被缓存
+     * @param request
+     * @param response
+     * @param ttl 缓存的有效期(毫秒)
+     */
+    public static void enable(HttpServletRequest request, HttpServletResponse response, long ttl){
+        if(ttl>0&&"GET".equals(request.getMethod())){
+            response.setCacheKey(request.getUri(),ttl);
+        }
+    }
+
+    /**
+     * 保存一个生成好的响应，由HttpServletResponse在发送时调用
+     * @param uri 请求的uri
+     * @param gzip 是否为支持gzip的客户端生成的版本
+     */
+    static void put(String uri, boolean gzip, CachedResponse cached){
+        Entry entry = cache.get(uri);
+        if(entry==null){
+            if(cache.size()>=maxEntries&&!removeExpired()){
+                return;//缓存已满(例如参数各不相同的请求)，不再缓存新的路径
+            }
+            entry = new Entry();
+            Entry old = cache.putIfAbsent(uri,entry);
+            if(old!=null){
+                entry = old;
+            }
+        }
+        if(gzip){
+            entry.gzip = cached;
+        }else{
+            entry.plain = cached;
+        }
+    }
+
+    /**
+     * 删除已经过期的缓存
+     * @return 是否删除了缓存
+     */
+    private static boolean removeExpired(){
+        long now = System.currentTimeMillis();
+        boolean removed = false;
+        for(Iterator<Entry> it = cache.values().iterator(); it.hasNext();){
+            Entry entry = it.next();
+            if(isExpired(entry.plain,now)&&isExpired(entry.gzip,now)){
+                it.remove();
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    private static boolean isExpired(CachedResponse cached, long now){
+        return cached==null||cached.getExpires()<=now;
+    }
+
+    /**
+     * 清空所有缓存
+     */
+    public static void clear(){
+        cache.clear();
+    }
+
+    /**
+     * 一个uri对应的缓存
+     */
+    private static class Entry {
+        private volatile CachedResponse plain;
+        private volatile CachedResponse gzip;
+    }
+
+    /**
+     * 缓存的一个响应
+     * 实例创建后不再修改，可以被多个线程同时使用。
+     */
+    public static class CachedResponse {
+        private final byte[] head;//状态行和响应头(不含Connection，Keep-Alive和结束的空行)
+        private final byte[] body;
+        private final long expires;//过期时间
+
+        CachedResponse(byte[] head, byte[] body, long expires) {
+            this.head = head;
+            this.body = body;
+            this.expires = expires;
+        }
+
+        byte[] getHead() {
+            return head;
+        }
+
+        byte[] getBody() {
+            return body;
+        }
+
+        public long getExpires() {
+            return expires;
+        }
+    }
+}
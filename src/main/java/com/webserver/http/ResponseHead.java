@@ -0,0 +1,126 @@
+package com.webserver.http;
+
+import static com.webserver.http.HttpContext.CR;
+import static com.webserver.http.HttpContext.LF;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * 响应的状态行和响应头
+ * 状态行和响应头依次写入同一个缓冲区，发送时与较小的正文一起一次写出。
+ * 常用的状态行和响应头的名字预先转换为字节，不必每次重新编码。
+ * 每个线程使用自己的缓冲区，缓冲区中的内容在下一次调用get之前发送完毕即可。
+ */
+class ResponseHead {
+    private static final byte[] CRLF = {CR, LF};
+    private static final String[] REASONS = new String[600];
+    private static final byte[][] STATUS_LINES = new byte[600][];
+    //key:响应头的名字 value:"名字: "对应的字节
+    private static final Map<String,byte[]> HEADER_NAMES = new HashMap<>();
+
+    static {
+        status(200,"OK");
+        status(206,"Partial Content");
+        status(302,"Moved Temporarily");
+        status(304,"Not Modified");
+        status(400,"Bad Request");
+        status(404,"NotFound");
+        status(405,"Method Not Allowed");
+        status(413,"Payload Too Large");
+        status(416,"Range Not Satisfiable");
+        status(500,"Internal Server Error");
+        status(503,"Service Unavailable");
+        for(String name : new String[]{
+                "Content-Type","Content-Length","Content-Encoding","Content-Range",
+                "Transfer-Encoding","Connection","Keep-Alive","Location","Vary","Allow"
+        }){
+            HEADER_NAMES.put(name,(name+": ").getBytes(StandardCharsets.ISO_8859_1));
+        }
+    }
+
+    private static void status(int code,String reason){
+        REASONS[code] = reason;
+        STATUS_LINES[code] = ("HTTP/1.1 "+code+" "+reason+"\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static final ThreadLocal<ResponseHead> LOCAL = ThreadLocal.withInitial(ResponseHead::new);
+
+    private byte[] buf = new byte[512];
+    private int count;
+
+    /**
+     * 获取当前线程的缓冲区(已清空)
+     */
+    static ResponseHead get(){
+        ResponseHead head = LOCAL.get();
+        head.count = 0;
+        return head;
+    }
+
+    void statusLine(int code,String reason){
+        if(code>=0&&code<STATUS_LINES.length&&STATUS_LINES[code]!=null&&REASONS[code].equals(reason)){
+            write(STATUS_LINES[code]);
+            return;
+        }
+        writeAscii("HTTP/1.1 ");
+        writeAscii(Integer.toString(code));
+        writeAscii(" ");
+        writeAscii(reason);
+        write(CRLF);
+    }
+
+    void header(String name,String value){
+        byte[] data = HEADER_NAMES.get(name);
+        if(data!=null){
+            write(data);
+        }else{
+            writeAscii(name);
+            writeAscii(": ");
+        }
+        writeAscii(value);
+        write(CRLF);
+    }
+
+    /**
+     * 写入预先生成好的响应头
+     */
+    void write(byte[] data){
+        ensureCapacity(data.length);
+        System.arraycopy(data,0,buf,count,data.length);
+        count += data.length;
+    }
+
+    /**
+     * 单独的回车+换行表示响应头部分结束
+     */
+    void end(){
+        write(CRLF);
+    }
+
+    ByteBuffer toByteBuffer(){
+        return ByteBuffer.wrap(buf,0,count);
+    }
+
+    byte[] toByteArray(){
+        return Arrays.copyOf(buf,count);
+    }
+
+    //响应头只允许ISO-8859-1字符，逐个字符写入，不创建字节数组
+    private void writeAscii(String s){
+        int len = s.length();
+        ensureCapacity(len);
+        for(int i=0;i<len;i++){
+            buf[count++] = (byte)s.charAt(i);
+        }
+    }
+
+    private void ensureCapacity(int len){
+        if(count+len>buf.length){
+            buf = Arrays.copyOf(buf,Math.max(buf.length*2,count+len));
+        }
+    }
+}
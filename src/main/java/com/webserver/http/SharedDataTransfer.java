@@ -0,0 +1,17 @@
+package com.webserver.http;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * 可以直接引用不变数据的响应输出
+ * 缓存中的内容(静态资源，缓存的响应)创建后不再修改，响应的输出流若实现了该接口，
+ * 发送这些内容时不再复制，而是直接交给输出保存其引用(例如由nio模式的I/O循环稍后发送)
+ */
+public interface SharedDataTransfer {
+    /**
+     * 发送一段不会再被修改的数据
+     * @param data 要发送的数据，调用后不应再修改其中的内容
+     */
+    void transferShared(ByteBuffer data) throws IOException;
+}
@@ -0,0 +1,207 @@
+package com.webserver.http;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.CRC32;
+
+/**
+ * 静态资源
+ * 该类的每一个实例表示static目录下的一个文件，保存了发送该文件所需的全部信息:
+ * MIME类型，长度，验证器(ETag和Last-Modified)，预先生成好的响应头，
+ * 以及(文件不大时)文件的全部内容。
+ * 实例创建后不再修改，可以被多个线程同时使用。
+ */
+public class StaticResource {
+    private final File file;
+    private final String mimeType;
+    private final long length;
+    private final long lastModified;
+    private final String etag;
+    private final String cacheControl;
+    private final byte[] data;//文件内容，文件过大时为null，发送时直接传输文件
+    private final byte[] headerBytes;//200响应使用的响应头
+    private final byte[] validatorHeaderBytes;//304响应使用的响应头(验证器，Cache-Control和Vary，不含正文相关的头)
+    //是否可以压缩，可以压缩时第一次被支持gzip的客户端请求后生成gzip版本
+    private final boolean compressible;
+    private volatile StaticResource gzipVariant;
+
+    /**
+     * @param file 对应的文件
+     * @param data 文件内容，为null表示不缓存内容
+     * @param cacheControl 响应头Cache-Control的值，为null时不发送
+     */
+    public StaticResource(File file, long length, long lastModified, byte[] data, String cacheControl) {
+        this(file, mimeTypeOf(file), length, lastModified, etagOf(length, lastModified, data),
+                data, cacheControl, null);
+    }
+
+    /**
+     * @param contentEncoding 内容的编码方式，为null表示未压缩
+     */
+    private StaticResource(File file, String mimeType, long length, long lastModified, String etag,
+                           byte[] data, String cacheControl, String contentEncoding) {
+        this.file = file;
+        this.mimeType = mimeType;
+        this.length = length;
+        this.lastModified = lastModified;
+        this.etag = etag;
+        this.data = data;
+        this.cacheControl = cacheControl;
+        this.compressible = contentEncoding==null && data!=null
+                && Compression.isCompressible(mimeType, length);
+        //同一个路径会根据Accept-Encoding返回不同内容，需告知中间的缓存，
+        //304响应也必须带有与200响应相同的Vary，否则缓存会混淆两种版本
+        String validators = "ETag: " + etag + "\r\n"
+                + "Last-Modified: " + HttpContext.formatDate(lastModified) + "\r\n"
+                + (cacheControl==null ? "" : "Cache-Control: " + cacheControl + "\r\n")
+                + (compressible||contentEncoding!=null ? "Vary: Accept-Encoding\r\n" : "");
+        String headers = "Content-Type: " + mimeType + "\r\n"
+                + "Content-Length: " + length + "\r\n"
+                + (contentEncoding==null ? "Accept-Ranges: bytes\r\n"
+                        : "Content-Encoding: " + contentEncoding + "\r\n")
+                + validators;
+        this.headerBytes = headers.getBytes(StandardCharsets.ISO_8859_1);
+        this.validatorHeaderBytes = validators.getBytes(StandardCharsets.ISO_8859_1);
+    }
+
+    private static String mimeTypeOf(File file){
+        //获取文件的后缀名   image.png
+        String fileName = file.getName();
+        String ext = fileName.substring(fileName.lastIndexOf(".")+1);
+        //根据后缀名提取对应的mime类型
+        String mime = HttpContext.getMimeType(ext);
+        return mime==null?"application/octet-stream":mime;
+    }
+
+    /*
+        ETag只在加载文件时计算一次
+        内容在内存中时根据内容计算(强验证器)，否则根据长度和修改时间生成(弱验证器)
+     */
+    private static String etagOf(long length, long lastModified, byte[] data){
+        if(data!=null){
+            CRC32 crc = new CRC32();
+            crc.update(data);
+            return "\"" + Long.toHexString(length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+        }
+        return "W/\"" + Long.toHexString(length) + "-" + Long.toHexString(lastModified) + "\"";
+    }
+
+    /**
+     * 获取当前资源的gzip版本
+     * gzip版本只在第一次需要时压缩一次，之后一直随当前资源缓存
+     * @return 当前资源不适合压缩(或压缩后没有变小)时返回当前资源本身
+     */
+    public StaticResource getGzipVariant(){
+        if(!compressible){
+            return this;
+        }
+        StaticResource variant = gzipVariant;
+        if(variant==null){
+            byte[] gzip = Compression.gzip(data);
+            if(gzip.length<data.length){
+                //gzip版本是另一种表示，ETag必须不同
+                String gzipEtag = etag.substring(0,etag.length()-1) + "-gz\"";
+                variant = new StaticResource(file, mimeType, gzip.length, lastModified, gzipEtag,
+                        gzip, cacheControl, "gzip");
+            }else{
+                variant = this;
+            }
+            gzipVariant = variant;
+        }
+        return variant;
+    }
+
+    /**
+     * 根据请求中的If-None-Match和If-Modified-Since判断客户端缓存的内容是否仍然有效
+     * @param request
+     * @return true表示可以回复304
+     */
+    public boolean isNotModified(HttpServletRequest request){
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if(ifNoneMatch!=null){//If-None-Match优先于If-Modified-Since
+            return matchesEtag(ifNoneMatch);
+        }
+        String ifModifiedSince = request.getHeader("If-Modified-Since");
+        if(ifModifiedSince!=null){
+            long since = HttpContext.parseDate(ifModifiedSince);
+            //HTTP日期只精确到秒
+            return since!=-1 && lastModified/1000 <= since/1000;
+        }
+        return false;
+    }
+
+    /**
+     * 根据请求中的If-Range判断是否可以只发送部分内容
+     * If-Range中的ETag或日期与当前资源不一致时说明客户端已有的部分已经过期，应发送完整内容
+     * @param request
+     * @return
+     */
+    public boolean isRangeValid(HttpServletRequest request){
+        String ifRange = request.getHeader("If-Range");
+        if(ifRange==null){
+            return true;
+        }
+        if(ifRange.startsWith("\"")){//ETag要求强比较
+            return !etag.startsWith("W/") && etag.equals(ifRange.trim());
+        }
+        if(ifRange.startsWith("W/")){
+            return false;
+        }
+        return HttpContext.parseDate(ifRange)==lastModified/1000*1000;
+    }
+
+    /**
+     * 判断给定的ETag列表中是否包含当前资源的ETag(弱比较)
+     * @param etags 例如:"a-1", W/"b-2" 或 *
+     * @return
+     */
+    public boolean matchesEtag(String etags){
+        //gzip版本有自己的ETag，调用者需要用与客户端协商出的版本判断
+        String current = etag.startsWith("W/") ? etag.substring(2) : etag;
+        for(String tag : etags.split(",")){
+            tag = tag.trim();
+            if(tag.equals("*")){
+                return true;
+            }
+            if(tag.startsWith("W/")){
+                tag = tag.substring(2);
+            }
+            if(tag.equals(current)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public String getMimeType() {
+        return mimeType;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    public String getEtag() {
+        return etag;
+    }
+
+    public byte[] getData() {
+        return data;
+    }
+
+    public byte[] getHeaderBytes() {
+        return headerBytes;
+    }
+
+    public byte[] getValidatorHeaderBytes() {
+        return validatorHeaderBytes;
+    }
+}
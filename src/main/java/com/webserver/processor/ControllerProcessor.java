@@ -0,0 +1,135 @@
+package com.webserver.processor;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+import javax.tools.FileObject;
+import javax.tools.StandardLocation;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * 编译期生成Controller索引的注解处理器
+ * 编译时找出所有被@Controller标注的类，将它们的完整类名写入
+ * META-INF/webserver/controllers，启动时HandlerMapping直接读取该文件，
+ * 不必再扫描controller目录(打包成jar后也可以正常加载)。
+ * 同时检查被@RequestMapping标注的方法是否可以被调用，有误时编译失败。
+ */
+public class ControllerProcessor extends AbstractProcessor {
+    public static final String INDEX = "META-INF/webserver/controllers";
+    private static final String CONTROLLER = "com.webserver.annotation.Controller";
+    private static final String REQUEST_MAPPING = "com.webserver.annotation.RequestMapping";
+    private static final String REQUEST = "com.webserver.http.HttpServletRequest";
+    private static final String RESPONSE = "com.webserver.http.HttpServletResponse";
+    private static final String FUTURE = "java.util.concurrent.CompletableFuture";
+
+    private Set<String> controllers = new TreeSet<>();
+
+    @Override
+    public Set<String> getSupportedAnnotationTypes() {
+        return Collections.singleton(CONTROLLER);
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        for(TypeElement annotation : annotations){
+            for(Element element : roundEnv.getElementsAnnotatedWith(annotation)){
+                if(element.getKind()!=ElementKind.CLASS){
+                    continue;
+                }
+                TypeElement type = (TypeElement) element;
+                checkMethods(type);
+                controllers.add(processingEnv.getElementUtils().getBinaryName(type).toString());
+            }
+        }
+        if(roundEnv.processingOver()){
+            writeIndex();
+        }
+        return false;
+    }
+
+    /**
+     * 处理请求的方法必须是public的，参数为(HttpServletRequest,HttpServletResponse)，
+     * 返回值为void或CompletableFuture(异步处理)
+     */
+    private void checkMethods(TypeElement type){
+        if(!type.getModifiers().contains(Modifier.PUBLIC)){
+            error(type, "Controller必须是public的");
+        }
+        for(Element member : type.getEnclosedElements()){
+            if(member.getKind()!=ElementKind.METHOD||!isRequestMapping(member)){
+                continue;
+            }
+            ExecutableElement method = (ExecutableElement) member;
+            List<? extends VariableElement> params = method.getParameters();
+            if(!method.getModifiers().contains(Modifier.PUBLIC)
+                    ||method.getModifiers().contains(Modifier.STATIC)
+                    ||params.size()!=2
+                    ||!params.get(0).asType().toString().equals(REQUEST)
+                    ||!params.get(1).asType().toString().equals(RESPONSE)
+                    ||!isValidReturnType(method.getReturnType())){
+                error(method, "处理请求的方法必须为public void|CompletableFuture<?> 方法名(HttpServletRequest,HttpServletResponse)");
+            }
+        }
+    }
+
+    private boolean isValidReturnType(TypeMirror type){
+        if(type.getKind()==TypeKind.VOID){
+            return true;
+        }
+        return type.getKind()==TypeKind.DECLARED
+                &&((DeclaredType) type).asElement().toString().equals(FUTURE);
+    }
+
+    private boolean isRequestMapping(Element element){
+        return element.getAnnotationMirrors().stream().anyMatch(
+                m -> m.getAnnotationType().toString().equals(REQUEST_MAPPING)
+        );
+    }
+
+    private void error(Element element, String message){
+        processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+    }
+
+    private void writeIndex(){
+        try {
+            FileObject file = processingEnv.getFiler().createResource(
+                    StandardLocation.CLASS_OUTPUT, "", INDEX
+            );
+            try (
+                    PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+                            file.openOutputStream(), StandardCharsets.UTF_8
+                    ));
+            ) {
+                for(String controller : controllers){
+                    pw.println(controller);
+                }
+            }
+        } catch (IOException e) {
+            processingEnv.getMessager().printMessage(
+                    Diagnostic.Kind.ERROR, "无法生成Controller索引:" + e.getMessage()
+            );
+        }
+    }
+}
@@ -0,0 +1,518 @@
+package com.webserver.storage;
+
+import com.webserver.core.ServerContext;
+import com.webserver.entity.Article;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 文章的存储引擎
+ * 文章依次追加到目录下的段文件(segment-00000001.dat ...)中，当前段超过配置的大小后创建下一个段，
+ * 已写满的段不再修改。
+ *
+ * 文件格式:
+ * 文件头: 4字节标识"WSAS" 4字节版本号
+ * 每条记录: 4字节正文长度 4字节正文的CRC32 正文(EntityCodec编码的文章:发表时间 标题 作者 内容)
+ *
+ * 每篇文章的编号即保存的顺序(从1开始)，发表时间随编号递增，因此编号的顺序就是时间顺序。
+ * 内存中的主索引按编号保存每篇文章所在的段，位置，长度，以及列表页需要的标题，作者和发表时间;
+ * 二级索引按作者保存该作者所有文章的编号(递增)，即按照作者+发表时间排序。
+ * 列表页只使用索引，不读取文章内容，读取第N页的开销与总文章数无关;
+ * 查看一篇文章时只从对应的段中读取一条记录。
+ *
+ * 启动时依次扫描所有段重建索引(只解析每条记录的标题和作者)，
+ * CRC不一致或不完整的记录(写入时进程崩溃)及其之后的内容被截断。
+ * 读操作可以同时进行，写操作互斥。
+ * 所有写操作都通过组提交(GroupCommitter)由一个写线程执行，同时到达的多篇文章合并为一次写入和一次fsync。
+ */
+public class ArticleStore implements Closeable {
+    private static final int MAGIC = 0x57534153;//"WSAS"
+    private static final int VERSION = 2;//版本1的记录使用DataOutputStream编码
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;//正文长度+CRC32
+    private static final int MAX_RECORD_SIZE = 16 * 1024 * 1024;
+
+    private final File dir;
+    private final long segmentSize;//段文件的大小上限
+    private final List<FileChannel> segments = new ArrayList<>();
+    private int lastSegmentNumber;//最后一个段文件的序号
+    private long end;//最后一个段中有效数据的末尾，新记录追加到这里
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final GroupCommitter<Article, Long> committer;
+    private int firstUnsynced;//上次fsync之后写入过的第一个段，只在写线程中访问
+
+    //主索引，下标为编号-1
+    private long[] times = new long[64];
+    private int[] segmentIndexes = new int[64];
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private String[] titles = new String[64];
+    private String[] authors = new String[64];
+    private int count;
+    //二级索引 key:作者 value:该作者所有文章的编号
+    private final Map<String, IdList> authorIndex = new HashMap<>();
+
+    /**
+     * 打开目录下的所有段文件，没有时创建第一个段，并通过扫描所有记录重建索引
+     * @param dir 段文件所在的目录
+     * @throws IOException 文件无法读写，或者不是文章数据文件
+     */
+    public ArticleStore(File dir) throws IOException {
+        this.dir = dir;
+        this.segmentSize = ServerContext.getInt("storage.article.segment-size", 16 * 1024 * 1024);
+        File[] files = dir.listFiles(f -> f.getName().matches("segment-[0-9]{8}\\.dat"));
+        if (files != null) {
+            Arrays.sort(files);
+        }
+        try {
+            if (files == null || files.length == 0) {
+                createSegment(1);
+            } else {
+                for (File file : files) {
+                    recover(file);
+                }
+            }
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+        firstUnsynced = segments.size() - 1;
+        committer = new GroupCommitter<>("storage-commit-" + dir.getName(),
+                new GroupCommitter.BatchWriter<Article, Long>() {
+                    @Override
+                    public void write(List<GroupCommitter.Write<Article, Long>> batch) throws IOException {
+                        writeBatch(batch);
+                    }
+
+                    @Override
+                    public void sync() throws IOException {
+                        ArticleStore.this.sync();
+                    }
+                });
+        System.out.println("文章数据加载完毕，共" + segments.size() + "个段，" + count + "篇文章");
+    }
+
+    /**
+     * 扫描一个段文件中的所有记录，加入索引
+     */
+    private void recover(File file) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.add(channel);
+        lastSegmentNumber = Integer.parseInt(file.getName().substring(8, 16));
+        long fileSize = channel.size();
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (fileSize == 0) {//创建段文件后还没来得及写入文件头
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header, 0);
+            end = FILE_HEADER_SIZE;
+            return;
+        }
+        if (fileSize < FILE_HEADER_SIZE || !readFully(channel, header, 0)
+                || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("不是文章数据文件或版本不支持:" + file);
+        }
+        int segment = segments.size() - 1;
+        long pos = FILE_HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (pos + RECORD_HEADER_SIZE <= fileSize) {
+            recordHeader.clear();
+            readFully(channel, recordHeader, pos);
+            int length = recordHeader.getInt(0);
+            int crc = recordHeader.getInt(4);
+            if (length <= 0 || length > MAX_RECORD_SIZE || pos + RECORD_HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            readFully(channel, ByteBuffer.wrap(payload), pos + RECORD_HEADER_SIZE);
+            if (crc(payload) != crc) {
+                break;
+            }
+            //只解析索引需要的部分，不解码内容
+            Article article = decode(payload, false);
+            index(article.getCreateTime(), article.getTitle(), article.getAuthor(),
+                    segment, pos, RECORD_HEADER_SIZE + length);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        if (pos < fileSize) {
+            System.out.println("文章数据文件" + file.getName() + "中有" + (fileSize - pos) + "字节不完整的记录，已截断");
+            channel.truncate(pos);
+        }
+        end = pos;
+    }
+
+    /**
+     * 保存一篇文章，保存后文章的编号和发表时间被设置到article中
+     * @param article
+     * @return 按照持久化策略提交后完成，结果为文章的编号
+     */
+    public CompletableFuture<Long> addAsync(Article article) {
+        return committer.submit(article);
+    }
+
+    /**
+     * 保存一篇文章并等待提交完成
+     * @param article
+     * @return 文章的编号
+     */
+    public long add(Article article) throws IOException {
+        return committer.execute(article);
+    }
+
+    /**
+     * 将一批文章合并为一次写入追加到最后一个段(在写线程中执行)
+     * 当前段写满时，已经合并的部分先写入当前段，其余的写入新的段。
+     * 前一部分已经写入后出错(包括运行时异常)时只有之后的文章失败，不抛出异常(抛出异常表示整批都没有写入)
+     */
+    private void writeBatch(List<GroupCommitter.Write<Article, Long>> batch) throws IOException {
+        lock.writeLock().lock();
+        int from = 0;//当前合并的部分在batch中的开始位置，之前的文章已经写入
+        try {
+            List<GroupCommitter.Write<Article, Long>> writes = new ArrayList<>();
+            List<byte[]> payloads = new ArrayList<>();
+            long size = 0;//已合并的记录的总长度
+            long lastTime = count == 0 ? 0 : times[count - 1];
+            for (int i = 0; i < batch.size(); i++) {
+                GroupCommitter.Write<Article, Long> write = batch.get(i);
+                Article article = write.getData();
+                //系统时间被调慢时仍保证发表时间不早于上一篇
+                lastTime = Math.max(System.currentTimeMillis(), lastTime);
+                article.setCreateTime(lastTime);
+                byte[] payload;
+                try {
+                    payload = encode(article);
+                } catch (RuntimeException e) {//例如标题或内容为null，只让这一篇失败
+                    write.fail(new IOException("文章无法编码", e));
+                    continue;
+                }
+                if (RECORD_HEADER_SIZE + payload.length > MAX_RECORD_SIZE) {
+                    write.fail(new IOException("文章过长:" + payload.length + "字节"));
+                    continue;
+                }
+                long start = end + size;
+                if (start > FILE_HEADER_SIZE && start + RECORD_HEADER_SIZE + payload.length > segmentSize) {
+                    append(writes, payloads, size);
+                    from = i;
+                    writes.clear();
+                    payloads.clear();
+                    size = 0;
+                    createSegment(lastSegmentNumber + 1);
+                }
+                writes.add(write);
+                payloads.add(payload);
+                size += RECORD_HEADER_SIZE + payload.length;
+            }
+            append(writes, payloads, size);
+        } catch (IOException | RuntimeException e) {
+            if (from == 0) {
+                throw e;
+            }
+            //之前的文章已经写入并且可以查询到，它们仍然成功
+            for (int i = from; i < batch.size(); i++) {
+                batch.get(i).fail(e);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 将多条记录一次追加到最后一个段的末尾，再加入索引
+     * @param size 记录的总长度
+     */
+    private void append(List<GroupCommitter.Write<Article, Long>> writes, List<byte[]> payloads, long size)
+            throws IOException {
+        if (payloads.isEmpty()) {
+            return;
+        }
+        FileChannel channel = segments.get(segments.size() - 1);
+        ByteBuffer records = ByteBuffer.allocate((int) size);
+        for (byte[] payload : payloads) {
+            records.putInt(payload.length).putInt(crc(payload)).put(payload);
+        }
+        records.flip();
+        long offset = end;
+        try {
+            writeFully(channel, records, offset);
+        } catch (IOException e) {
+            //去掉写了一半的记录
+            channel.truncate(offset);
+            throw e;
+        }
+        end = offset + size;
+        for (int i = 0; i < payloads.size(); i++) {
+            Article article = writes.get(i).getData();
+            int length = RECORD_HEADER_SIZE + payloads.get(i).length;
+            index(article.getCreateTime(), article.getTitle(), article.getAuthor(),
+                    segments.size() - 1, offset, length);
+            offset += length;
+            article.setId(count);
+            writes.get(i).setResult((long) count);
+        }
+    }
+
+    /**
+     * 将上次fsync之后写入过的段同步到磁盘(在写线程中执行)
+     */
+    private void sync() throws IOException {
+        lock.readLock().lock();
+        try {
+            for (int i = firstUnsynced; i < segments.size(); i++) {
+                segments.get(i).force(false);
+            }
+            firstUnsynced = segments.size() - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 根据编号获取一篇完整的文章
+     * @param id
+     * @return 文章不存在时返回null
+     */
+    public Article get(long id) throws IOException {
+        lock.readLock().lock();
+        try {
+            if (id < 1 || id > count) {
+                return null;
+            }
+            int i = (int) id - 1;
+            Article article = decode(read(segments.get(segmentIndexes[i]), offsets[i], lengths[i]), true);
+            article.setId(id);
+            return article;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 按照发表时间从新到旧获取一页文章，只包含编号，标题，作者和发表时间，不包含内容
+     * @param author 只获取该作者的文章，为null表示所有作者
+     * @param before 游标:只获取编号小于该值的文章(即上一页最后一篇的编号)，不大于0表示从最新的一篇开始
+     * @param limit 最多获取的文章数
+     * @return
+     */
+    public List<Article> list(String author, long before, int limit) {
+        lock.readLock().lock();
+        try {
+            //编号不大于last的文章
+            int last = before <= 0 || before > count ? count : (int) before - 1;
+            List<Article> page = new ArrayList<>(Math.max(0, Math.min(limit, last)));
+            if (author == null) {
+                for (int id = last; id >= 1 && page.size() < limit; id--) {
+                    page.add(summary(id));
+                }
+            } else {
+                IdList ids = authorIndex.get(author);
+                if (ids != null) {
+                    for (int j = ids.countNotAbove(last) - 1; j >= 0 && page.size() < limit; j--) {
+                        page.add(summary(ids.ids[j]));
+                    }
+                }
+            }
+            return page;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 文章的总数
+     * @param author 只统计该作者的文章，为null表示所有作者
+     * @return
+     */
+    public int size(String author) {
+        lock.readLock().lock();
+        try {
+            if (author == null) {
+                return count;
+            }
+            IdList ids = authorIndex.get(author);
+            return ids == null ? 0 : ids.size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        //先写入队列中已有的操作
+        if (committer != null) {
+            committer.close();
+        }
+        lock.writeLock().lock();
+        try {
+            for (FileChannel channel : segments) {
+                channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 根据索引中的信息生成不含内容的文章
+     */
+    private Article summary(int id) {
+        Article article = new Article(titles[id - 1], authors[id - 1], null);
+        article.setId(id);
+        article.setCreateTime(times[id - 1]);
+        return article;
+    }
+
+    /**
+     * 将一条记录加入主索引和二级索引
+     */
+    private void index(long time, String title, String author, int segment, long offset, int length) {
+        if (count == times.length) {
+            int capacity = count * 2;
+            times = Arrays.copyOf(times, capacity);
+            segmentIndexes = Arrays.copyOf(segmentIndexes, capacity);
+            offsets = Arrays.copyOf(offsets, capacity);
+            lengths = Arrays.copyOf(lengths, capacity);
+            titles = Arrays.copyOf(titles, capacity);
+            authors = Arrays.copyOf(authors, capacity);
+        }
+        IdList ids = authorIndex.get(author);
+        if (ids == null) {
+            ids = new IdList();
+            authorIndex.put(author, ids);
+        } else {
+            author = authors[ids.ids[0] - 1];//同一作者共用一个字符串
+        }
+        times[count] = time;
+        segmentIndexes[count] = segment;
+        offsets[count] = offset;
+        lengths[count] = length;
+        titles[count] = title;
+        authors[count] = author;
+        count++;
+        ids.add(count);
+    }
+
+    /**
+     * 创建一个新的段文件，之后的记录都追加到该段中
+     */
+    private void createSegment(int number) throws IOException {
+        File file = new File(dir, String.format("segment-%08d.dat", number));
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).flip();
+        try {
+            writeFully(channel, header, 0);
+        } catch (IOException e) {
+            //删除创建了一半的段，下次写入时重新创建
+            channel.close();
+            Files.deleteIfExists(file.toPath());
+            throw e;
+        }
+        segments.add(channel);
+        lastSegmentNumber = number;
+        end = FILE_HEADER_SIZE;
+    }
+
+    /**
+     * 读取段中一条记录的正文
+     * @param offset 记录的位置
+     * @param length 记录的总长度
+     */
+    private static byte[] read(FileChannel channel, long offset, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        if (!readFully(channel, record, offset)) {
+            throw new EOFException("文章数据文件已损坏");
+        }
+        byte[] payload = Arrays.copyOfRange(record.array(), RECORD_HEADER_SIZE, length);
+        if (crc(payload) != record.getInt(4)) {
+            throw new IOException("文章数据文件已损坏");
+        }
+        return payload;
+    }
+
+    private static byte[] encode(Article article) {
+        ByteBuffer data = ByteBuffer.allocate(EntityCodec.sizeOf(article));
+        EntityCodec.writeArticle(data, article);
+        return data.array();
+    }
+
+    private static Article decode(byte[] payload, boolean withContent) throws IOException {
+        try {
+            return EntityCodec.readArticle(ByteBuffer.wrap(payload), withContent);
+        } catch (RuntimeException e) {
+            throw new IOException("文章数据文件已损坏", e);
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * @return false表示文件在读满之前就结束了
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position);
+            if (len == -1) {
+                return false;
+            }
+            position += len;
+        }
+        return true;
+    }
+
+    /**
+     * 一个作者所有文章的编号，按照递增顺序保存
+     */
+    private static class IdList {
+        private int[] ids = new int[4];
+        private int size;
+
+        void add(int id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+
+        /**
+         * 不大于给定编号的文章数(二分查找)
+         */
+        int countNotAbove(int id) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (ids[mid] <= id) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+    }
+}
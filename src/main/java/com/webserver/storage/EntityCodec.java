@@ -0,0 +1,272 @@
+package com.webserver.storage;
+
+import com.webserver.entity.Article;
+import com.webserver.entity.User;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 用户和文章的二进制编码
+ * 直接读写ByteBuffer，不使用反射，也不写入类的描述信息，取代Java序列化。
+ *
+ * 每个实体以1字节的格式版本开始，之后依次是各个字段:
+ * 字符串: 变长整数表示的UTF-8字节数 + UTF-8字节
+ * int/long: 变长整数(zigzag编码，每字节7位，最高位为1表示后面还有字节)，较小的数只占1字节
+ *
+ * 用户(版本1): 用户名 密码 昵称 年龄
+ * 文章(版本1): 发表时间 标题 作者 内容 (编号由存储决定，不写入)
+ *
+ * 以后增加字段时提高版本号并把新字段加在末尾，读取时根据版本号决定读到哪里，
+ * 旧版本的数据中没有的字段使用默认值，因此已保存的数据不需要重新编码。
+ */
+public class EntityCodec {
+    private static final byte USER_VERSION = 1;
+    private static final byte ARTICLE_VERSION = 1;
+
+    /**
+     * 编码一个用户需要的字节数
+     * @param user
+     * @return
+     */
+    public static int sizeOf(User user) {
+        return 1 + sizeOf(user.getUsername()) + sizeOf(user.getPassword())
+                + sizeOf(user.getNickname()) + sizeOfVarLong(zigzag(user.getAge()));
+    }
+
+    /**
+     * 将用户写入buffer的当前位置
+     * @param buffer 剩余空间不少于sizeOf(user)
+     * @param user
+     */
+    public static void writeUser(ByteBuffer buffer, User user) {
+        buffer.put(USER_VERSION);
+        writeString(buffer, user.getUsername());
+        writeString(buffer, user.getPassword());
+        writeString(buffer, user.getNickname());
+        writeVarLong(buffer, zigzag(user.getAge()));
+    }
+
+    /**
+     * 从buffer的当前位置读取一个用户
+     * @param buffer
+     * @return
+     */
+    public static User readUser(ByteBuffer buffer) {
+        checkVersion(buffer.get(), USER_VERSION, "用户");
+        return new User(readString(buffer), readString(buffer), readString(buffer),
+                (int) unzigzag(readVarLong(buffer)));
+    }
+
+    /**
+     * 只读取用户名(查找时比较用户名用)
+     * @param buffer
+     * @return
+     */
+    public static String readUsername(ByteBuffer buffer) {
+        checkVersion(buffer.get(), USER_VERSION, "用户");
+        return readString(buffer);
+    }
+
+    /**
+     * 编码一篇文章需要的字节数
+     * @param article
+     * @return
+     */
+    public static int sizeOf(Article article) {
+        return 1 + sizeOfVarLong(zigzag(article.getCreateTime())) + sizeOf(article.getTitle())
+                + sizeOf(article.getAuthor()) + sizeOf(article.getContent());
+    }
+
+    /**
+     * 将文章写入buffer的当前位置
+     * @param buffer 剩余空间不少于sizeOf(article)
+     * @param article
+     */
+    public static void writeArticle(ByteBuffer buffer, Article article) {
+        buffer.put(ARTICLE_VERSION);
+        writeVarLong(buffer, zigzag(article.getCreateTime()));
+        writeString(buffer, article.getTitle());
+        writeString(buffer, article.getAuthor());
+        writeString(buffer, article.getContent());
+    }
+
+    /**
+     * 从buffer的当前位置读取一篇文章
+     * @param buffer
+     * @param withContent 为false时跳过内容，返回的文章内容为null(生成列表时使用)
+     * @return
+     */
+    public static Article readArticle(ByteBuffer buffer, boolean withContent) {
+        checkVersion(buffer.get(), ARTICLE_VERSION, "文章");
+        long createTime = unzigzag(readVarLong(buffer));
+        String title = readString(buffer);
+        String author = readString(buffer);
+        String content = null;
+        if (withContent) {
+            content = readString(buffer);
+        } else {
+            int length = readLength(buffer);
+            buffer.position(buffer.position() + length);
+        }
+        Article article = new Article(title, author, content);
+        article.setCreateTime(createTime);
+        return article;
+    }
+
+    /**
+     * 编码一个字符串需要的字节数
+     * @param s
+     * @return
+     */
+    public static int sizeOf(String s) {
+        int length = utf8Length(s);
+        return sizeOfVarLong(length) + length;
+    }
+
+    /**
+     * 写入一个字符串:UTF-8字节数 + UTF-8字节，直接写入buffer不创建字节数组
+     */
+    public static void writeString(ByteBuffer buffer, String s) {
+        int length = utf8Length(s);
+        writeVarLong(buffer, length);
+        if (length > buffer.remaining()) {
+            throw new BufferOverflowException();
+        }
+        if (buffer.hasArray()) {//直接写入底层数组，避免每个字节都经过一次put
+            encodeUtf8(s, buffer.array(), buffer.arrayOffset() + buffer.position());
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] data = new byte[length];
+            encodeUtf8(s, data, 0);
+            buffer.put(data);
+        }
+    }
+
+    /**
+     * 将字符串以UTF-8编码写入数组，调用前需确认空间足够
+     */
+    private static void encodeUtf8(String s, byte[] data, int pos) {
+        int len = s.length();
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                data[pos++] = (byte) c;
+            } else if (c < 0x800) {
+                data[pos++] = (byte) (0xC0 | c >> 6);
+                data[pos++] = (byte) (0x80 | c & 0x3F);
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, s.charAt(++i));
+                data[pos++] = (byte) (0xF0 | cp >> 18);
+                data[pos++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                data[pos++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                data[pos++] = (byte) (0x80 | cp & 0x3F);
+            } else if (Character.isSurrogate(c)) {//不成对的代理字符与String.getBytes一样写为'?'
+                data[pos++] = '?';
+            } else {
+                data[pos++] = (byte) (0xE0 | c >> 12);
+                data[pos++] = (byte) (0x80 | c >> 6 & 0x3F);
+                data[pos++] = (byte) (0x80 | c & 0x3F);
+            }
+        }
+    }
+
+    /**
+     * 读取一个字符串
+     */
+    public static String readString(ByteBuffer buffer) {
+        int length = readLength(buffer);
+        String s;
+        if (buffer.hasArray()) {
+            s = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+        } else {
+            byte[] data = new byte[length];
+            buffer.get(data);
+            s = new String(data, StandardCharsets.UTF_8);
+        }
+        return s;
+    }
+
+    /**
+     * 写入一个变长整数(无符号，每字节7位，低位在前)
+     */
+    public static void writeVarLong(ByteBuffer buffer, long value) {
+        while ((value & ~0x7FL) != 0) {
+            buffer.put((byte) (value & 0x7F | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte) value);
+    }
+
+    /**
+     * 读取一个变长整数
+     */
+    public static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            byte b = buffer.get();
+            value |= (long) (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("变长整数格式错误");
+    }
+
+    public static int sizeOfVarLong(long value) {
+        int size = 1;
+        while ((value & ~0x7FL) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    //有符号数转换为无符号数，绝对值较小的负数同样只占很少的字节
+    private static long zigzag(long value) {
+        return value << 1 ^ value >> 63;
+    }
+
+    private static long unzigzag(long value) {
+        return value >>> 1 ^ -(value & 1);
+    }
+
+    /**
+     * 读取字符串的长度，并检查剩余的数据是否足够
+     */
+    private static int readLength(ByteBuffer buffer) {
+        long length = readVarLong(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("字符串长度错误:" + length);
+        }
+        return (int) length;
+    }
+
+    private static int utf8Length(String s) {
+        int len = s.length();
+        int length = len;
+        for (int i = 0; i < len; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    length++;
+                } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    length += 2;//两个char共4字节
+                    i++;
+                } else if (!Character.isSurrogate(c)) {
+                    length += 2;
+                }
+            }
+        }
+        return length;
+    }
+
+    private static void checkVersion(byte version, byte current, String name) {
+        //新版本只在末尾增加字段，当前只有版本1
+        if (version < 1 || version > current) {
+            throw new IllegalArgumentException("不支持的" + name + "数据版本:" + version);
+        }
+    }
+}
@@ -0,0 +1,289 @@
+package com.webserver.storage;
+
+import com.webserver.core.ServerContext;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 组提交(group commit)
+ * 各个请求线程的写操作先放入队列，由一个写线程每次取出队列中的全部操作，
+ * 交给存储合并为一次追加写入，再按照持久化策略执行fsync，之后才完成每个操作的future。
+ * 写线程执行一次写入和fsync期间到达的操作在下一批中一起处理，并发越高每批越大，
+ * fsync的次数不随请求数增加。
+ * future由单独的完成线程完成，调用者的后续操作(thenAccept等)在完成线程中执行，不占用写线程。
+ *
+ * 持久化策略(storage.durability):
+ * always   每批写入后立即fsync，future完成时数据一定已经写入磁盘
+ * interval 两次fsync之间至少间隔storage.durability.interval毫秒，future在写入后的下一次fsync完成后才完成
+ * os       不主动fsync，由操作系统决定何时写入磁盘，写入文件后future立即完成
+ *          (进程崩溃不会丢失数据，断电或系统崩溃时可能丢失最近的写入)
+ *
+ * @param <D> 写操作的内容
+ * @param <R> 写操作的结果
+ */
+public class GroupCommitter<D, R> implements Closeable {
+    private static final int MAX_BATCH = 1024;//每批最多合并的操作数
+
+    /**
+     * 持久化策略
+     */
+    public enum Durability {
+        ALWAYS, INTERVAL, OS
+    }
+
+    /**
+     * 存储实现的批量写入
+     */
+    public interface BatchWriter<D, R> {
+        /**
+         * 将一批操作合并写入文件(在写线程中调用)
+         * 通过Write.setResult设置每个操作的结果，单个操作无法执行时调用Write.fail，不影响同一批的其他操作。
+         * 抛出异常表示整批都没有写入
+         */
+        void write(List<Write<D, R>> batch) throws IOException;
+
+        /**
+         * 将已写入的数据同步到磁盘
+         */
+        void sync() throws IOException;
+    }
+
+    /**
+     * 一个写操作
+     */
+    public static class Write<D, R> {
+        private final D data;
+        private final CompletableFuture<R> future = new CompletableFuture<>();
+        private R result;
+        private Throwable error;
+
+        private Write(D data) {
+            this.data = data;
+        }
+
+        public D getData() {
+            return data;
+        }
+
+        public void setResult(R result) {
+            this.result = result;
+        }
+
+        public void fail(Throwable error) {
+            this.error = error;
+        }
+    }
+
+    private final BatchWriter<D, R> writer;
+    private final Durability durability;
+    private final long interval;//INTERVAL策略下两次fsync的最小间隔
+    private final BlockingQueue<Write<D, R>> queue = new LinkedBlockingQueue<>();
+    private final Write<D, R> stop = new Write<>(null);//放入队列表示关闭，之后不会再有操作放入队列
+    private final Thread thread;
+    private final ExecutorService completer;//完成future的线程
+    private boolean closed;//通过当前对象的锁访问
+
+    /**
+     * 创建并启动写线程
+     * @param name 写线程的名字
+     * @param writer 执行写入的存储
+     */
+    public GroupCommitter(String name, BatchWriter<D, R> writer) {
+        this.writer = writer;
+        this.durability = getConfiguredDurability();
+        this.interval = ServerContext.getInt("storage.durability.interval", 100);
+        completer = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, name + "-complete");
+            t.setDaemon(true);
+            return t;
+        });
+        thread = new Thread(this::run, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * 提交一个写操作
+     * @param data
+     * @return 按照持久化策略提交完成后完成的future
+     */
+    public CompletableFuture<R> submit(D data) {
+        Write<D, R> write = new Write<>(data);
+        synchronized (this) {//与close互斥，关闭后放入队列的操作不会被处理
+            if (!closed) {
+                queue.add(write);
+                return write.future;
+            }
+        }
+        write.future.completeExceptionally(new IOException("存储已关闭"));
+        return write.future;
+    }
+
+    /**
+     * 提交一个写操作并等待提交完成
+     * 不能在submit返回的future的后续操作中调用，它们在完成线程中执行，等待会使完成线程阻塞
+     * @param data
+     * @return 写操作的结果
+     */
+    public R execute(D data) throws IOException {
+        try {
+            return submit(data).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("等待写入时被中断", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * 读取配置的持久化策略，配置有误时使用always
+     * (在存储的构造方法中抛出异常会使Controller无法加载)
+     */
+    private static Durability getConfiguredDurability() {
+        String value = ServerContext.getString("storage.durability", "always");
+        for (Durability durability : Durability.values()) {
+            if (durability.name().equalsIgnoreCase(value)) {
+                return durability;
+            }
+        }
+        System.out.println("storage.durability配置有误:" + value + "，使用always");
+        return Durability.ALWAYS;
+    }
+
+    private void run() {
+        List<Write<D, R>> batch = new ArrayList<>();
+        List<Write<D, R>> unsynced = new ArrayList<>();//已写入但还没有fsync的操作
+        long lastSync = 0;
+        boolean stopping = false;
+        while (!stopping || !unsynced.isEmpty()) {
+            try {
+                Write<D, R> first;
+                if (stopping) {
+                    first = null;
+                } else if (unsynced.isEmpty()) {
+                    first = queue.take();
+                } else {//等到下一次fsync的时间，期间到达的操作一起写入
+                    long wait = lastSync + interval - System.currentTimeMillis();
+                    first = wait > 0 ? queue.poll(wait, TimeUnit.MILLISECONDS) : queue.poll();
+                }
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH - 1);
+                    stopping = batch.remove(stop);
+                    write(batch, unsynced);
+                    batch.clear();
+                }
+                if (!unsynced.isEmpty()
+                        && (durability == Durability.ALWAYS || stopping
+                        || System.currentTimeMillis() - lastSync >= interval)) {
+                    sync(unsynced);
+                    lastSync = System.currentTimeMillis();
+                }
+            } catch (InterruptedException e) {
+                //写线程只在关闭时结束，忽略中断
+            }
+        }
+    }
+
+    /**
+     * 写入一批操作，需要等待fsync的操作放入unsynced
+     */
+    private void write(List<Write<D, R>> batch, List<Write<D, R>> unsynced) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            writer.write(batch);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            complete(batch, e);
+            return;
+        }
+        List<Write<D, R>> done = new ArrayList<>();
+        for (Write<D, R> write : batch) {
+            if (write.error != null || durability == Durability.OS) {
+                done.add(write);
+            } else {
+                unsynced.add(write);
+            }
+        }
+        complete(done, null);
+    }
+
+    /**
+     * fsync后完成所有等待的操作
+     */
+    private void sync(List<Write<D, R>> unsynced) {
+        try {
+            writer.sync();
+            complete(unsynced, null);
+        } catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+            complete(unsynced, e);
+        }
+        unsynced.clear();
+    }
+
+    /**
+     * 在完成线程中完成一批操作的future
+     * @param writes
+     * @param error 整批失败的原因，为null时按照每个操作的结果完成
+     */
+    private void complete(List<Write<D, R>> writes, Throwable error) {
+        if (writes.isEmpty()) {
+            return;
+        }
+        List<Write<D, R>> done = new ArrayList<>(writes);
+        completer.execute(() -> {
+            for (Write<D, R> write : done) {
+                if (error != null) {
+                    write.future.completeExceptionally(error);
+                } else if (write.error != null) {
+                    write.future.completeExceptionally(write.error);
+                } else {
+                    write.future.complete(write.result);
+                }
+            }
+        });
+    }
+
+    /**
+     * 写入并同步队列中已有的操作，完成它们的future后结束写线程
+     */
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            queue.add(stop);
+        }
+        try {
+            thread.join();
+            completer.shutdown();
+            completer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
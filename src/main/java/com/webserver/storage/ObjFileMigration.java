@@ -0,0 +1,165 @@
+package com.webserver.storage;
+
+import com.webserver.entity.Article;
+import com.webserver.entity.User;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectStreamClass;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * 将以前使用Java序列化保存的obj文件(每个用户/每篇文章一个)导入到存储引擎中
+ * 只需在升级后运行一次，服务器本身不再读取obj文件:
+ * java -cp target/classes com.webserver.storage.ObjFileMigration [用户目录] [文章目录]
+ * 目录默认为./users和./articles。
+ *
+ * 导入成功的文件改名为*.obj.bak，再次运行时不会重复导入。
+ * 读取obj文件时只允许出现User和Article类，其他任何类都会被拒绝，避免反序列化漏洞。
+ */
+public class ObjFileMigration {
+    private static final String BACKUP_SUFFIX = ".bak";
+
+    public static void main(String[] args) throws IOException {
+        File userDir = new File(args.length > 0 ? args[0] : "./users");
+        File articleDir = new File(args.length > 1 ? args[1] : "./articles");
+        migrateUsers(userDir);
+        migrateArticles(articleDir);
+    }
+
+    /**
+     * 将目录下的用户obj文件导入到users.dat中，用户名已存在时跳过
+     * @param dir
+     */
+    public static void migrateUsers(File dir) throws IOException {
+        File[] files = listObjFiles(dir);
+        if (files.length == 0) {
+            return;
+        }
+        int imported = 0;
+        try (UserStore store = new UserStore(new File(dir, "users.dat"))) {
+            //全部提交后再等待，所有用户通过组提交合并写入
+            List<CompletableFuture<Boolean>> futures = new ArrayList<>();
+            for (File file : files) {
+                User user = read(file, User.class);
+                futures.add(user == null ? null : store.createAsync(user));
+            }
+            for (int i = 0; i < files.length; i++) {
+                Boolean created = await(futures.get(i), files[i]);
+                if (created == null) {
+                    continue;
+                }
+                if (created) {
+                    imported++;
+                } else {
+                    System.out.println("用户已存在，跳过:" + files[i].getName());
+                }
+                backup(files[i]);
+            }
+        }
+        System.out.println("已导入" + imported + "个用户，共" + files.length + "个文件");
+    }
+
+    /**
+     * 将目录下的文章obj文件按照修改时间的顺序导入到段文件中，以保持原来的发表顺序
+     * @param dir
+     */
+    public static void migrateArticles(File dir) throws IOException {
+        File[] files = listObjFiles(dir);
+        if (files.length == 0) {
+            return;
+        }
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        int imported = 0;
+        try (ArticleStore store = new ArticleStore(dir)) {
+            //按顺序全部提交后再等待，所有文章通过组提交合并写入
+            List<CompletableFuture<Long>> futures = new ArrayList<>();
+            for (File file : files) {
+                Article article = read(file, Article.class);
+                futures.add(article == null ? null : store.addAsync(article));
+            }
+            for (int i = 0; i < files.length; i++) {
+                if (await(futures.get(i), files[i]) != null) {
+                    imported++;
+                    backup(files[i]);
+                }
+            }
+        }
+        System.out.println("已导入" + imported + "篇文章，共" + files.length + "个文件");
+    }
+
+    /**
+     * 目录下所有待导入的obj文件
+     */
+    public static File[] listObjFiles(File dir) {
+        File[] files = dir.listFiles(f -> f.isFile() && f.getName().endsWith(".obj"));
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * 读取一个obj文件
+     * @return 文件无法读取时返回null
+     */
+    private static <T> T read(File file, Class<T> type) {
+        try (
+                FileInputStream fis = new FileInputStream(file);
+                ObjectInputStream ois = new EntityInputStream(fis, type);
+        ) {
+            return type.cast(ois.readObject());
+        } catch (IOException | ClassNotFoundException | ClassCastException e) {
+            System.out.println("无法读取" + file.getName() + ":" + e);
+            return null;
+        }
+    }
+
+    /**
+     * 等待一个文件的导入完成
+     * @return 导入失败时返回null
+     */
+    private static <T> T await(CompletableFuture<T> future, File file) {
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            System.out.println("无法导入" + file.getName() + ":" + e);
+            return null;
+        }
+    }
+
+    private static void backup(File file) {
+        File backup = new File(file.getPath() + BACKUP_SUFFIX);
+        if (!file.renameTo(backup)) {
+            System.out.println("无法重命名" + file.getName() + "，再次运行时会重复导入");
+        }
+    }
+
+    /**
+     * 只允许反序列化给定实体类的ObjectInputStream
+     */
+    private static class EntityInputStream extends ObjectInputStream {
+        private final Class<?> type;
+
+        EntityInputStream(InputStream in, Class<?> type) throws IOException {
+            super(in);
+            this.type = type;
+        }
+
+        @Override
+        protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException {
+            if (!desc.getName().equals(type.getName())) {
+                throw new InvalidClassException(desc.getName(), "不允许反序列化的类");
+            }
+            return super.resolveClass(desc);
+        }
+    }
+}
@@ -0,0 +1,648 @@
+package com.webserver.storage;
+
+import com.webserver.core.ServerContext;
+import com.webserver.entity.User;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * 用户信息的存储引擎
+ * 所有用户保存在同一个只追加(append-only)的数据文件中，新增，修改和删除都是在文件末尾追加一条记录，
+ * 内存中的索引记录每个用户名对应的最新记录在文件中的位置和长度，
+ * 查找一个用户只需在索引中查找一次，再从文件的对应位置读取一次。
+ *
+ * 文件格式:
+ * 文件头: 4字节标识"WSUL" 4字节版本号
+ * 每条记录: 4字节正文长度 4字节正文的CRC32 正文(1字节类型 + 保存:EntityCodec编码的用户 删除:用户名)
+ *
+ * 启动时从头到尾重放所有记录重建索引，CRC不一致或不完整的记录(写入时进程崩溃)及其之后的内容被截断。
+ * 被覆盖和删除的记录占用的空间在超过一定比例后由后台定期压缩:有效记录依次写入新文件，
+ * 再通过原子的重命名替换原文件，压缩过程中崩溃不会影响原文件。
+ *
+ * 索引使用开放寻址的散列表，只保存用户名的64位散列值，记录的位置和长度三个基本类型数组，
+ * 不为每个用户创建任何对象。散列值相同时读取记录比较用户名。
+ * 读操作可以同时进行，写操作和压缩互斥。
+ * 所有写操作都通过组提交(GroupCommitter)由一个写线程执行，同时到达的多个操作合并为一次写入和一次fsync。
+ */
+public class UserStore implements Closeable {
+    private static final int MAGIC = 0x5753554C;//"WSUL"
+    private static final int VERSION = 2;//版本1的记录使用DataOutputStream编码
+    private static final int FILE_HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;//正文长度+CRC32
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+    //记录类型
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    //索引中offset的特殊值，有效记录的位置不会小于文件头的长度
+    private static final long EMPTY = 0;
+    private static final long DELETED = -1;
+
+    //定期检查是否需要压缩的线程，所有存储共用
+    private static final ScheduledExecutorService compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "storage-compaction");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final File file;
+    private FileChannel channel;
+    private long end;//文件中有效数据的末尾，新记录追加到这里
+    private long liveBytes;//有效记录占用的字节数
+    private long garbageBytes;//已被覆盖或删除的记录占用的字节数
+    private final long minGarbage;//可以压缩时无效记录至少占用的字节数
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private ScheduledFuture<?> compactTask;
+    private final GroupCommitter<Mutation, Boolean> committer;
+
+    //索引
+    private long[] hashes = new long[64];
+    private long[] offsets = new long[64];
+    private int[] lengths = new int[64];
+    private int size;//索引中的用户数
+    private int used;//已使用的槽位数(含已删除的)
+
+    /**
+     * 打开数据文件，不存在时创建，并通过重放所有记录重建索引
+     * @param file 数据文件
+     * @throws IOException 文件无法读写，或者不是用户数据文件
+     */
+    public UserStore(File file) throws IOException {
+        this.file = file;
+        this.minGarbage = ServerContext.getInt("storage.compact.min-garbage", 1024 * 1024);
+        //删除上次压缩时崩溃留下的临时文件，原文件仍然完整
+        Files.deleteIfExists(compactFile().toPath());
+        channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            recover();
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        committer = new GroupCommitter<>("storage-commit-" + file.getName(),
+                new GroupCommitter.BatchWriter<Mutation, Boolean>() {
+                    @Override
+                    public void write(List<GroupCommitter.Write<Mutation, Boolean>> batch) throws IOException {
+                        writeBatch(batch);
+                    }
+
+                    @Override
+                    public void sync() throws IOException {
+                        UserStore.this.sync();
+                    }
+                });
+        long interval = ServerContext.getInt("storage.compact.interval", 60000);
+        if (interval > 0) {
+            compactTask = compactor.scheduleWithFixedDelay(this::compactIfNeeded,
+                    interval, interval, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 重放数据文件中的所有记录重建索引
+     */
+    private void recover() throws IOException {
+        long fileSize = channel.size();
+        if (fileSize == 0) {
+            ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).flip();
+            writeFully(channel, header, 0);
+            end = FILE_HEADER_SIZE;
+            return;
+        }
+        ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+        if (fileSize < FILE_HEADER_SIZE || !readFully(channel, header, 0)
+                || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("不是用户数据文件或版本不支持:" + file);
+        }
+        long pos = FILE_HEADER_SIZE;
+        ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (pos + RECORD_HEADER_SIZE <= fileSize) {
+            recordHeader.clear();
+            readFully(channel, recordHeader, pos);
+            int length = recordHeader.getInt(0);
+            int crc = recordHeader.getInt(4);
+            if (length <= 0 || length > MAX_RECORD_SIZE || pos + RECORD_HEADER_SIZE + length > fileSize) {
+                break;
+            }
+            byte[] payload = new byte[length];
+            readFully(channel, ByteBuffer.wrap(payload), pos + RECORD_HEADER_SIZE);
+            if (crc(payload) != crc) {
+                break;
+            }
+            apply(payload, pos, RECORD_HEADER_SIZE + length);
+            pos += RECORD_HEADER_SIZE + length;
+        }
+        if (pos < fileSize) {
+            System.out.println("用户数据文件末尾有" + (fileSize - pos) + "字节不完整的记录，已截断");
+            channel.truncate(pos);
+        }
+        end = pos;
+        System.out.println("用户数据加载完毕，共" + size + "个用户");
+    }
+
+    /**
+     * 重放一条记录
+     * @param offset 记录在文件中的位置
+     * @param length 记录的总长度
+     */
+    private void apply(byte[] payload, long offset, int length) throws IOException {
+        byte type = payload[0];
+        String username = decodeUsername(payload);
+        long hash = hash(username);
+        int slot = find(username, hash);
+        if (slot != -1) {//之前的记录失效
+            remove(slot);
+        }
+        if (type == PUT) {
+            insert(hash, offset, length);
+        } else {//删除记录本身在压缩后也不再需要
+            garbageBytes += length;
+        }
+    }
+
+    /**
+     * 只有用户名不存在时才添加该用户，检查和添加是一个原子操作
+     * @param user
+     * @return 按照持久化策略提交后完成，结果为false表示该用户名已经存在
+     */
+    public CompletableFuture<Boolean> createAsync(User user) {
+        return committer.submit(new Mutation(PUT, user, user.getUsername(), true));
+    }
+
+    /**
+     * 只有用户名不存在时才添加该用户，并等待提交完成
+     * @param user
+     * @return false表示该用户名已经存在
+     */
+    public boolean create(User user) throws IOException {
+        return committer.execute(new Mutation(PUT, user, user.getUsername(), true));
+    }
+
+    /**
+     * 保存用户，已存在时替换原来的信息
+     * @param user
+     */
+    public void put(User user) throws IOException {
+        committer.execute(new Mutation(PUT, user, user.getUsername(), false));
+    }
+
+    /**
+     * 删除用户
+     * @param username
+     * @return false表示该用户不存在
+     */
+    public boolean delete(String username) throws IOException {
+        return committer.execute(new Mutation(DELETE, null, username, false));
+    }
+
+    /**
+     * 将一批写操作的记录合并为一次写入追加到文件末尾，再像启动时重放一样依次更新索引(在写线程中执行)
+     */
+    private void writeBatch(List<GroupCommitter.Write<Mutation, Boolean>> batch) throws IOException {
+        lock.writeLock().lock();
+        try {
+            //同一批中前面的操作执行后各个用户名是否存在
+            Map<String, Boolean> pending = new HashMap<>();
+            List<byte[]> payloads = new ArrayList<>();
+            int total = 0;
+            for (GroupCommitter.Write<Mutation, Boolean> write : batch) {
+                Mutation mutation = write.getData();
+                Boolean exists = pending.get(mutation.username);
+                if (exists == null) {
+                    exists = find(mutation.username, hash(mutation.username)) != -1;
+                }
+                byte[] payload;
+                if (mutation.type == PUT) {
+                    if (mutation.createOnly && exists) {
+                        write.setResult(false);
+                        continue;
+                    }
+                    try {
+                        payload = encode(mutation.user);
+                    } catch (IOException e) {
+                        write.fail(e);
+                        continue;
+                    }
+                } else {
+                    if (!exists) {
+                        write.setResult(false);
+                        continue;
+                    }
+                    ByteBuffer data = ByteBuffer.allocate(1 + EntityCodec.sizeOf(mutation.username));
+                    data.put(DELETE);
+                    EntityCodec.writeString(data, mutation.username);
+                    payload = data.array();
+                }
+                pending.put(mutation.username, mutation.type == PUT);
+                write.setResult(true);
+                payloads.add(payload);
+                total += RECORD_HEADER_SIZE + payload.length;
+            }
+            if (payloads.isEmpty()) {
+                return;
+            }
+            ByteBuffer records = ByteBuffer.allocate(total);
+            for (byte[] payload : payloads) {
+                records.putInt(payload.length).putInt(crc(payload)).put(payload);
+            }
+            records.flip();
+            long offset = end;
+            try {
+                writeFully(channel, records, offset);
+            } catch (IOException e) {
+                //去掉写了一半的记录
+                channel.truncate(offset);
+                throw e;
+            }
+            end = offset + total;
+            for (byte[] payload : payloads) {
+                apply(payload, offset, RECORD_HEADER_SIZE + payload.length);
+                offset += RECORD_HEADER_SIZE + payload.length;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 将已写入的记录同步到磁盘(在写线程中执行)
+     */
+    private void sync() throws IOException {
+        //读锁保证压缩不会同时替换文件
+        lock.readLock().lock();
+        try {
+            channel.force(false);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 根据用户名获取用户
+     * @param username
+     * @return 用户不存在时返回null
+     */
+    public User get(String username) throws IOException {
+        lock.readLock().lock();
+        try {
+            long hash = hash(username);
+            int mask = offsets.length - 1;
+            for (int i = (int) hash & mask; offsets[i] != EMPTY; i = (i + 1) & mask) {
+                if (offsets[i] != DELETED && hashes[i] == hash) {
+                    User user = decode(read(offsets[i], lengths[i]));
+                    if (user.getUsername().equals(username)) {
+                        return user;
+                    }
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 获取所有用户，按照最后一次保存的顺序排列(没有修改过的用户即注册的顺序)
+     * @return
+     */
+    public List<User> getAll() throws IOException {
+        lock.readLock().lock();
+        try {
+            int[] live = liveSlots();
+            List<User> users = new ArrayList<>(live.length);
+            for (int slot : live) {
+                users.add(decode(read(offsets[slot], lengths[slot])));
+            }
+            return users;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 所有有效记录所在的槽位，按照记录在文件中的位置排序
+     * 调用时需持有锁
+     */
+    private int[] liveSlots() {
+        Integer[] slots = new Integer[size];
+        int n = 0;
+        for (int i = 0; i < offsets.length; i++) {
+            if (offsets[i] > EMPTY) {
+                slots[n++] = i;
+            }
+        }
+        Arrays.sort(slots, 0, n, (a, b) -> Long.compare(offsets[a], offsets[b]));
+        int[] live = new int[n];
+        for (int i = 0; i < n; i++) {
+            live[i] = slots[i];
+        }
+        return live;
+    }
+
+    /**
+     * 当前的用户数
+     * @return
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 无效记录足够多时压缩数据文件
+     */
+    private void compactIfNeeded() {
+        try {
+            boolean needed;
+            lock.readLock().lock();
+            try {
+                needed = channel.isOpen() && garbageBytes >= minGarbage && garbageBytes >= liveBytes;
+            } finally {
+                lock.readLock().unlock();
+            }
+            if (needed) {
+                compact();
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * 压缩数据文件:将所有有效记录按原来的顺序写入新文件，再替换原文件
+     */
+    public void compact() throws IOException {
+        lock.writeLock().lock();
+        try {
+            File tmp = compactFile();
+            int[] live = liveSlots();
+            int n = live.length;
+            long[] newOffsets = new long[n];
+            long pos = FILE_HEADER_SIZE;
+            try (
+                    FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+            ) {
+                ByteBuffer header = ByteBuffer.allocate(FILE_HEADER_SIZE);
+                header.putInt(MAGIC).putInt(VERSION).flip();
+                writeFully(out, header, 0);
+                for (int i = 0; i < n; i++) {
+                    int slot = live[i];
+                    ByteBuffer record = ByteBuffer.allocate(lengths[slot]);
+                    readFully(channel, record, offsets[slot]);
+                    record.flip();
+                    writeFully(out, record, pos);
+                    newOffsets[i] = pos;
+                    pos += lengths[slot];
+                }
+                //新文件完整写入磁盘后才能替换原文件
+                out.force(true);
+            } catch (IOException e) {
+                Files.deleteIfExists(tmp.toPath());
+                throw e;
+            }
+            channel.close();
+            try {
+                Files.move(tmp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                channel = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            if (channel.size() != pos) {//替换失败，仍然使用原文件
+                throw new IOException("替换用户数据文件失败");
+            }
+            for (int i = 0; i < n; i++) {
+                offsets[live[i]] = newOffsets[i];
+            }
+            System.out.println("用户数据文件压缩完毕:" + end + "->" + pos + "字节");
+            end = pos;
+            liveBytes = pos - FILE_HEADER_SIZE;
+            garbageBytes = 0;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (compactTask != null) {
+            compactTask.cancel(false);
+        }
+        //先写入队列中已有的操作
+        committer.close();
+        lock.writeLock().lock();
+        try {
+            channel.close();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private File compactFile() {
+        return new File(file.getPath() + ".compact");
+    }
+
+    /**
+     * 读取文件中一条记录的正文
+     * @param offset 记录的位置
+     * @param length 记录的总长度
+     */
+    private byte[] read(long offset, int length) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(length);
+        if (!readFully(channel, record, offset)) {
+            throw new EOFException("用户数据文件已损坏");
+        }
+        byte[] payload = Arrays.copyOfRange(record.array(), RECORD_HEADER_SIZE, length);
+        if (crc(payload) != record.getInt(4)) {
+            throw new IOException("用户数据文件已损坏");
+        }
+        return payload;
+    }
+
+    /**
+     * 在索引中查找用户名对应的槽位
+     * @return 没有该用户时返回-1
+     */
+    private int find(String username, long hash) throws IOException {
+        int mask = offsets.length - 1;
+        for (int i = (int) hash & mask; offsets[i] != EMPTY; i = (i + 1) & mask) {
+            if (offsets[i] != DELETED && hashes[i] == hash
+                    && decodeUsername(read(offsets[i], lengths[i])).equals(username)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 将一条记录加入索引，调用前需确认该用户名不在索引中
+     */
+    private void insert(long hash, long offset, int length) {
+        if ((used + 1) * 2 > offsets.length) {
+            resize();
+        }
+        int mask = offsets.length - 1;
+        int i = (int) hash & mask;
+        while (offsets[i] > EMPTY) {
+            i = (i + 1) & mask;
+        }
+        if (offsets[i] == EMPTY) {
+            used++;
+        }
+        hashes[i] = hash;
+        offsets[i] = offset;
+        lengths[i] = length;
+        size++;
+        liveBytes += length;
+    }
+
+    /**
+     * 从索引中移除一个槽位，该记录变为无效记录
+     */
+    private void remove(int slot) {
+        offsets[slot] = DELETED;
+        size--;
+        liveBytes -= lengths[slot];
+        garbageBytes += lengths[slot];
+    }
+
+    /**
+     * 扩大索引(已删除的槽位不再保留)
+     */
+    private void resize() {
+        long[] oldHashes = hashes;
+        long[] oldOffsets = offsets;
+        int[] oldLengths = lengths;
+        int capacity = offsets.length;
+        while (size * 4 >= capacity) {//扩容后使用率不超过1/4
+            capacity *= 2;
+        }
+        hashes = new long[capacity];
+        offsets = new long[capacity];
+        lengths = new int[capacity];
+        int mask = capacity - 1;
+        for (int j = 0; j < oldOffsets.length; j++) {
+            if (oldOffsets[j] > EMPTY) {
+                int i = (int) oldHashes[j] & mask;
+                while (offsets[i] != EMPTY) {
+                    i = (i + 1) & mask;
+                }
+                hashes[i] = oldHashes[j];
+                offsets[i] = oldOffsets[j];
+                lengths[i] = oldLengths[j];
+            }
+        }
+        used = size;
+    }
+
+    private static byte[] encode(User user) throws IOException {
+        ByteBuffer data = ByteBuffer.allocate(1 + EntityCodec.sizeOf(user));
+        data.put(PUT);
+        EntityCodec.writeUser(data, user);
+        if (data.capacity() > MAX_RECORD_SIZE) {
+            throw new IOException("用户信息过长:" + data.capacity() + "字节");
+        }
+        return data.array();
+    }
+
+    private static User decode(byte[] payload) throws IOException {
+        try {
+            ByteBuffer data = ByteBuffer.wrap(payload, 1, payload.length - 1);
+            return EntityCodec.readUser(data);
+        } catch (RuntimeException e) {
+            throw new IOException("用户数据文件已损坏", e);
+        }
+    }
+
+    private static String decodeUsername(byte[] payload) throws IOException {
+        try {
+            ByteBuffer data = ByteBuffer.wrap(payload, 1, payload.length - 1);
+            return payload[0] == PUT ? EntityCodec.readUsername(data) : EntityCodec.readString(data);
+        } catch (RuntimeException e) {
+            throw new IOException("用户数据文件已损坏", e);
+        }
+    }
+
+    /**
+     * 通过组提交执行的一个写操作
+     */
+    private static class Mutation {
+        private final byte type;
+        private final User user;//保存时的用户信息
+        private final String username;
+        private final boolean createOnly;//只有用户名不存在时才保存
+
+        Mutation(byte type, User user, String username, boolean createOnly) {
+            this.type = type;
+            this.user = user;
+            this.username = username;
+            this.createOnly = createOnly;
+        }
+    }
+
+    private static int crc(byte[] data) {
+        CRC32 crc = new CRC32();
+        crc.update(data);
+        return (int) crc.getValue();
+    }
+
+    /**
+     * 用户名的64位散列值(FNV-1a，再打散高低位)
+     */
+    private static long hash(String s) {
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < s.length(); i++) {
+            h ^= s.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    /**
+     * @return false表示文件在读满之前就结束了
+     */
+    private static boolean readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int len = channel.read(buffer, position);
+            if (len == -1) {
+                return false;
+            }
+            position += len;
+        }
+        return true;
+    }
+}
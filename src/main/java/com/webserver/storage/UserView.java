@@ -0,0 +1,124 @@
+package com.webserver.storage;
+
+import com.webserver.entity.User;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * 用户列表的物化视图
+ * 内存中按照每种排序方式分别保存一份排好序的全部用户，注册成功后由add增量更新(二分查找插入位置)，
+ * 获取某一页时直接按照下标截取，不再读取数据文件，也不需要每次重新排序。
+ * 每次更新都生成新的数组(写时复制)，读取时不需要加锁。
+ * 每次更新后版本号加1，根据视图生成的内容(例如页面)可以用版本号判断是否过期。
+ */
+public class UserView {
+    /**
+     * 支持的排序方式:注册时间，用户名，昵称，年龄
+     */
+    public static final String[] SORTS = {"time", "username", "nickname", "age"};
+    //与SORTS对应，注册时间的顺序即添加的顺序，不需要比较
+    private static final List<Comparator<User>> COMPARATORS = Arrays.asList(
+            null,
+            Comparator.comparing(User::getUsername),
+            Comparator.comparing(User::getNickname).thenComparing(User::getUsername),
+            Comparator.comparingInt(User::getAge).thenComparing(User::getUsername)
+    );
+
+    private volatile Snapshot snapshot;
+
+    /**
+     * @param users 所有用户，按照注册的顺序排列
+     */
+    public UserView(List<User> users) {
+        User[][] sorted = new User[SORTS.length][];
+        for (int i = 0; i < SORTS.length; i++) {
+            sorted[i] = users.toArray(new User[0]);
+            if (COMPARATORS.get(i) != null) {
+                Arrays.sort(sorted[i], COMPARATORS.get(i));
+            }
+        }
+        snapshot = new Snapshot(sorted, 0);
+    }
+
+    /**
+     * 加入一个新注册的用户
+     * @param user
+     */
+    public synchronized void add(User user) {
+        Snapshot current = snapshot;
+        User[][] sorted = new User[SORTS.length][];
+        for (int i = 0; i < SORTS.length; i++) {
+            User[] old = current.sorted[i];
+            int index = old.length;
+            Comparator<User> comparator = COMPARATORS.get(i);
+            if (comparator != null) {
+                index = Arrays.binarySearch(old, user, comparator);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+            }
+            User[] users = new User[old.length + 1];
+            System.arraycopy(old, 0, users, 0, index);
+            users[index] = user;
+            System.arraycopy(old, index, users, index + 1, old.length - index);
+            sorted[i] = users;
+        }
+        snapshot = new Snapshot(sorted, current.version + 1);
+    }
+
+    /**
+     * 获取按照给定方式排序后的一部分用户
+     * @param sort 排序方式，SORTS中的一个，不支持的方式按照注册时间排序
+     * @param desc 是否倒序
+     * @param offset 跳过的用户数
+     * @param limit 最多获取的用户数
+     * @return
+     */
+    public List<User> getPage(String sort, boolean desc, int offset, int limit) {
+        User[] users = snapshot.sorted[Math.max(0, indexOfSort(sort))];
+        int from = Math.min(Math.max(0, offset), users.length);
+        int to = (int) Math.min((long) from + Math.max(0, limit), users.length);
+        List<User> page = new ArrayList<>(to - from);
+        for (int i = from; i < to; i++) {
+            page.add(desc ? users[users.length - 1 - i] : users[i]);
+        }
+        return page;
+    }
+
+    /**
+     * 判断是否支持给定的排序方式
+     * @return 不支持时返回-1
+     */
+    public static int indexOfSort(String sort) {
+        for (int i = 0; i < SORTS.length; i++) {
+            if (SORTS[i].equals(sort)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public int size() {
+        return snapshot.sorted[0].length;
+    }
+
+    public long getVersion() {
+        return snapshot.version;
+    }
+
+    /**
+     * 某一时刻的全部数据，创建后不再修改
+     */
+    private static class Snapshot {
+        private final User[][] sorted;//与SORTS对应的各种顺序
+        private final long version;
+
+        Snapshot(User[][] sorted, long version) {
+            this.sorted = sorted;
+            this.version = version;
+        }
+    }
+}